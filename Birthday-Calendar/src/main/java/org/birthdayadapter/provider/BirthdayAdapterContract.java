@@ -32,6 +32,47 @@ public class BirthdayAdapterContract {
         String ACCOUNT_TYPE = "account_type";
     }
 
+    interface RawContactVersionsColumns {
+        String CONTACT_ID = "contact_id";
+        String VERSION = "version";
+    }
+
+    interface ContactEventsColumns {
+        String RAW_CONTACT_ID = "raw_contact_id";
+        String CONTACT_ID = "contact_id";
+        String LOOKUP_KEY = "lookup_key";
+        String DISPLAY_NAME = "display_name";
+        String ACCOUNT_NAME = "account_name";
+        String ACCOUNT_TYPE = "account_type";
+        String TYPE = "type";
+        String LABEL = "label";
+        String DATE = "date";
+        String MONTH = "month";
+        String DAY = "day";
+        String YEAR = "year";
+        String FORMAT = "format";
+        String VERSION = "version";
+    }
+
+    interface DateFormatStatsColumns {
+        String ACCOUNT_TYPE = "account_type";
+        String FORMAT = "format";
+        String COUNT = "count";
+    }
+
+    interface EventMappingsColumns {
+        String CONTACT_KEY = "contact_key";
+        String EVENT_KEY = "event_key";
+        String HASH = "hash";
+        String REMINDER_SIGNATURE = "reminder_signature";
+        String REMINDER_IDS = "reminder_ids";
+    }
+
+    interface SyncStateColumns {
+        String KEY = "key";
+        String VALUE = "value";
+    }
+
     public static final String CONTENT_AUTHORITY;
 
     static {
@@ -45,6 +86,16 @@ public class BirthdayAdapterContract {
     private static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
     public static final String PATH_ACCOUNT_BLACKLIST = "account_blacklist";
+    public static final String PATH_RAW_CONTACT_VERSIONS = "raw_contact_versions";
+    public static final String PATH_CONTACT_EVENTS = "contact_events";
+    public static final String PATH_DATE_FORMAT_STATS = "date_format_stats";
+    public static final String PATH_EVENT_MAPPINGS = "event_mappings";
+    public static final String PATH_SYNC_STATE = "sync_state";
+
+    /**
+     * Query parameter limiting the number of returned rows
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
 
     public static class AccountBlacklist implements AccountBlacklistColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
@@ -74,6 +125,246 @@ public class BirthdayAdapterContract {
         }
     }
 
+    /**
+     * Versions of raw contacts at the last successful sync. _ID is the id of the raw contact.
+     */
+    public static class RawContactVersions implements RawContactVersionsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_RAW_CONTACT_VERSIONS).build();
+
+        /**
+         * Use if multiple items get returned
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.birthdayadapter.raw_contact_versions";
+
+        /**
+         * Use if a single item is returned
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.birthdayadapter.raw_contact_version";
+
+        /**
+         * Default "ORDER BY" clause.
+         */
+        public static final String DEFAULT_SORT = BaseColumns._ID + " ASC";
+
+        public static Uri buildUri(String id) {
+            return CONTENT_URI.buildUpon().appendPath(id).build();
+        }
+    }
+
+    /**
+     * Mirror of the events of all contacts, refreshed for changed contacts on every sync. DATE is
+     * the date string as stored in the contacts provider, MONTH (1-12), DAY and YEAR are parsed
+     * from it and null if it could not be parsed. FORMAT is the date format that succeeded, one of
+     * the FORMAT_ constants. VERSION is the data version of the event.
+     */
+    public static class ContactEvents implements ContactEventsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_CONTACT_EVENTS).build();
+
+        /**
+         * Use if multiple items get returned
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.birthdayadapter.contact_events";
+
+        /**
+         * Use if a single item is returned
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.birthdayadapter.contact_event";
+
+        /**
+         * Default "ORDER BY" clause.
+         */
+        public static final String DEFAULT_SORT = ContactEventsColumns.CONTACT_ID + " ASC, "
+                + ContactEventsColumns.RAW_CONTACT_ID + " ASC";
+
+        /**
+         * Values of FORMAT, do not change them!
+         */
+        public static final int FORMAT_UNPARSEABLE = 0;
+        public static final int FORMAT_YYYY_MM_DD = 1;
+        public static final int FORMAT_NO_YEAR_MM_DD = 2;
+        public static final int FORMAT_YYYYMMDD = 3;
+        public static final int FORMAT_TIMESTAMP = 4;
+        public static final int FORMAT_DD_MM_YYYY_DOT = 5;
+        public static final int FORMAT_YYYY_MM_DD_DOT = 6;
+        public static final int FORMAT_DD_MM_YYYY = 7;
+        public static final int FORMAT_DD_MM = 8;
+        public static final int FORMAT_MM_DD_YYYY = 9;
+        public static final int FORMAT_MM_DD = 10;
+
+        /**
+         * Added to FORMAT if the date could only be parsed by the slow SimpleDateFormats
+         */
+        public static final int FORMAT_FLAG_FALLBACK = 0x100;
+
+        public static Uri buildUri(String id) {
+            return CONTENT_URI.buildUpon().appendPath(id).build();
+        }
+
+        /**
+         * @return the date pattern of FORMAT, null if the date could not be parsed
+         */
+        public static String getFormatPattern(int format) {
+            switch (format & ~FORMAT_FLAG_FALLBACK) {
+                case FORMAT_YYYY_MM_DD:
+                    return "yyyy-MM-dd";
+                case FORMAT_NO_YEAR_MM_DD:
+                    return "--MM-dd";
+                case FORMAT_YYYYMMDD:
+                    return "yyyyMMdd";
+                case FORMAT_TIMESTAMP:
+                    return "Unix timestamp";
+                case FORMAT_DD_MM_YYYY_DOT:
+                    return "dd.MM.yyyy";
+                case FORMAT_YYYY_MM_DD_DOT:
+                    return "yyyy.MM.dd";
+                case FORMAT_DD_MM_YYYY:
+                    return "dd/MM/yyyy";
+                case FORMAT_DD_MM:
+                    return "dd/MM";
+                case FORMAT_MM_DD_YYYY:
+                    return "MM/dd/yyyy";
+                case FORMAT_MM_DD:
+                    return "MM/dd";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Number of mirrored contact events per account type and date format, read only
+     */
+    public static class DateFormatStats implements DateFormatStatsColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_DATE_FORMAT_STATS).build();
+
+        /**
+         * Use if multiple items get returned
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.birthdayadapter.date_format_stats";
+
+        /**
+         * Default "ORDER BY" clause.
+         */
+        public static final String DEFAULT_SORT = DateFormatStatsColumns.ACCOUNT_TYPE + " ASC, "
+                + DateFormatStatsColumns.COUNT + " DESC";
+    }
+
+    /**
+     * Events in the birthday calendar. _ID is the id of the event in the calendar provider,
+     * REMINDER_IDS are the comma separated ids of its reminders, null if unknown. HASH is the hash
+     * of the event's compared values.
+     */
+    public static class EventMappings implements EventMappingsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_EVENT_MAPPINGS).build();
+
+        /**
+         * Use if multiple items get returned
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.birthdayadapter.event_mappings";
+
+        /**
+         * Use if a single item is returned
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.birthdayadapter.event_mapping";
+
+        /**
+         * Default "ORDER BY" clause.
+         */
+        public static final String DEFAULT_SORT = EventMappingsColumns.CONTACT_KEY + " ASC";
+
+        public static Uri buildUri(String id) {
+            return CONTENT_URI.buildUpon().appendPath(id).build();
+        }
+
+        /**
+         * @return uri to query at most limit mappings
+         */
+        public static Uri buildLimitUri(int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit)).build();
+        }
+    }
+
+    /**
+     * Key value pairs describing the state of the last successful sync
+     */
+    public static class SyncState implements SyncStateColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC_STATE).build();
+
+        /**
+         * Use if multiple items get returned
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.birthdayadapter.sync_state";
+
+        /**
+         * Highest Contacts.CONTACT_LAST_UPDATED_TIMESTAMP seen by the last successful sync
+         */
+        public static final String KEY_CONTACTS_WATERMARK = "contacts_watermark";
+
+        /**
+         * Highest DeletedContacts.CONTACT_DELETED_TIMESTAMP seen by the last successful sync
+         */
+        public static final String KEY_DELETED_CONTACTS_WATERMARK = "deleted_contacts_watermark";
+
+        /**
+         * Preference to parse dd/MM instead of MM/dd used for the dates in ContactEvents
+         */
+        public static final String KEY_PARSED_DD_SLASH_MM = "parsed_dd_slash_mm";
+
+        /**
+         * Id of the birthday calendar that EventMappings belongs to, removed if the mappings may
+         * differ from the calendar
+         */
+        public static final String KEY_MAPPED_CALENDAR_ID = "mapped_calendar_id";
+
+        /**
+         * Fingerprint of the config of the last successful complete sync, see SyncFingerprint
+         */
+        public static final String KEY_CONFIG_FINGERPRINT = "config_fingerprint";
+
+        /**
+         * Fingerprint of the raw contacts at the last successful sync, see SyncFingerprint
+         */
+        public static final String KEY_CONTACTS_FINGERPRINT = "contacts_fingerprint";
+
+        /**
+         * Year of the last successful complete sync, the range of generated events depends on it
+         */
+        public static final String KEY_SYNCED_YEAR = "synced_year";
+
+        /**
+         * Id of the birthday calendar at the last successful complete sync
+         */
+        public static final String KEY_SYNCED_CALENDAR_ID = "synced_calendar_id";
+
+        /**
+         * Reminder signature of all events at the last successful sync, see
+         * SyncConfig.getReminderSignature()
+         */
+        public static final String KEY_SYNCED_REMINDERS = "synced_reminders";
+
+        /**
+         * Fingerprint of the title preferences and the locale at the last successful sync
+         */
+        public static final String KEY_TITLES_FINGERPRINT = "titles_fingerprint";
+
+        /**
+         * Account blacklist at the last successful sync, see SyncFingerprint.computeBlacklist()
+         */
+        public static final String KEY_SYNCED_BLACKLIST = "synced_blacklist";
+
+        /**
+         * Account calendars whose events are mapped, one line with calendar id, account type
+         * and account name per calendar, see AccountCalendars
+         */
+        public static final String KEY_ACCOUNT_CALENDARS = "account_calendars";
+    }
+
     private BirthdayAdapterContract() {
     }
 }
@@ -30,10 +30,14 @@ import org.birthdayadapter.util.Log;
 
 public class BirthdayAdapterDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "birthdayadapter.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
 
     public interface Tables {
         String ACCOUNT_BLACKLIST = "account_blacklist";
+        String RAW_CONTACT_VERSIONS = "raw_contact_versions";
+        String SYNC_STATE = "sync_state";
+        String CONTACT_EVENTS = "contact_events";
+        String EVENT_MAPPINGS = "event_mappings";
     }
 
     private static final String CREATE_ACCOUNT_BLACKLIST = "CREATE TABLE IF NOT EXISTS "
@@ -41,6 +45,50 @@ public class BirthdayAdapterDatabase extends SQLiteOpenHelper {
             + BirthdayAdapterContract.AccountBlacklistColumns.ACCOUNT_NAME + " TEXT, "
             + BirthdayAdapterContract.AccountBlacklistColumns.ACCOUNT_TYPE + " TEXT)";
 
+    private static final String CREATE_RAW_CONTACT_VERSIONS = "CREATE TABLE IF NOT EXISTS "
+            + Tables.RAW_CONTACT_VERSIONS + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+            + BirthdayAdapterContract.RawContactVersionsColumns.CONTACT_ID + " INTEGER, "
+            + BirthdayAdapterContract.RawContactVersionsColumns.VERSION + " INTEGER)";
+
+    private static final String CREATE_SYNC_STATE = "CREATE TABLE IF NOT EXISTS "
+            + Tables.SYNC_STATE + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + BirthdayAdapterContract.SyncStateColumns.KEY + " TEXT UNIQUE, "
+            + BirthdayAdapterContract.SyncStateColumns.VALUE + " TEXT)";
+
+    private static final String CREATE_CONTACT_EVENTS = "CREATE TABLE IF NOT EXISTS "
+            + Tables.CONTACT_EVENTS + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + BirthdayAdapterContract.ContactEventsColumns.RAW_CONTACT_ID + " INTEGER, "
+            + BirthdayAdapterContract.ContactEventsColumns.CONTACT_ID + " INTEGER, "
+            + BirthdayAdapterContract.ContactEventsColumns.LOOKUP_KEY + " TEXT, "
+            + BirthdayAdapterContract.ContactEventsColumns.DISPLAY_NAME + " TEXT, "
+            + BirthdayAdapterContract.ContactEventsColumns.ACCOUNT_NAME + " TEXT, "
+            + BirthdayAdapterContract.ContactEventsColumns.ACCOUNT_TYPE + " TEXT, "
+            + BirthdayAdapterContract.ContactEventsColumns.TYPE + " INTEGER, "
+            + BirthdayAdapterContract.ContactEventsColumns.LABEL + " TEXT, "
+            + BirthdayAdapterContract.ContactEventsColumns.DATE + " TEXT, "
+            + BirthdayAdapterContract.ContactEventsColumns.MONTH + " INTEGER, "
+            + BirthdayAdapterContract.ContactEventsColumns.DAY + " INTEGER, "
+            + BirthdayAdapterContract.ContactEventsColumns.YEAR + " INTEGER, "
+            + BirthdayAdapterContract.ContactEventsColumns.FORMAT + " INTEGER, "
+            + BirthdayAdapterContract.ContactEventsColumns.VERSION + " INTEGER)";
+
+    private static final String CREATE_CONTACT_EVENTS_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.CONTACT_EVENTS + "_contact_id_index ON " + Tables.CONTACT_EVENTS + "("
+            + BirthdayAdapterContract.ContactEventsColumns.CONTACT_ID + ", "
+            + BirthdayAdapterContract.ContactEventsColumns.RAW_CONTACT_ID + ")";
+
+    private static final String CREATE_EVENT_MAPPINGS = "CREATE TABLE IF NOT EXISTS "
+            + Tables.EVENT_MAPPINGS + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+            + BirthdayAdapterContract.EventMappingsColumns.CONTACT_KEY + " TEXT, "
+            + BirthdayAdapterContract.EventMappingsColumns.EVENT_KEY + " TEXT, "
+            + BirthdayAdapterContract.EventMappingsColumns.HASH + " INTEGER, "
+            + BirthdayAdapterContract.EventMappingsColumns.REMINDER_SIGNATURE + " TEXT, "
+            + BirthdayAdapterContract.EventMappingsColumns.REMINDER_IDS + " TEXT)";
+
+    private static final String CREATE_EVENT_MAPPINGS_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.EVENT_MAPPINGS + "_contact_key_index ON " + Tables.EVENT_MAPPINGS + "("
+            + BirthdayAdapterContract.EventMappingsColumns.CONTACT_KEY + ")";
+
     BirthdayAdapterDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -50,17 +98,27 @@ public class BirthdayAdapterDatabase extends SQLiteOpenHelper {
         Log.w(Constants.TAG, "Creating database...");
 
         db.execSQL(CREATE_ACCOUNT_BLACKLIST);
+        db.execSQL(CREATE_RAW_CONTACT_VERSIONS);
+        db.execSQL(CREATE_SYNC_STATE);
+        db.execSQL(CREATE_CONTACT_EVENTS);
+        db.execSQL(CREATE_CONTACT_EVENTS_INDEX);
+        db.execSQL(CREATE_EVENT_MAPPINGS);
+        db.execSQL(CREATE_EVENT_MAPPINGS_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.w(Constants.TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
 
-//        if (oldVersion <= 1) {
-//
-//        } else {
-        db.execSQL("DROP TABLE IF EXISTS " + Tables.ACCOUNT_BLACKLIST);
-        onCreate(db);
-//        }
+        // keep the account blacklist, only add the new tables
+        if (oldVersion < 2) {
+            db.execSQL(CREATE_RAW_CONTACT_VERSIONS);
+            db.execSQL(CREATE_SYNC_STATE);
+            db.execSQL(CREATE_CONTACT_EVENTS);
+            db.execSQL(CREATE_CONTACT_EVENTS_INDEX);
+            // filled from the calendar on the next sync
+            db.execSQL(CREATE_EVENT_MAPPINGS);
+            db.execSQL(CREATE_EVENT_MAPPINGS_INDEX);
+        }
     }
-}
\ No newline at end of file
+}
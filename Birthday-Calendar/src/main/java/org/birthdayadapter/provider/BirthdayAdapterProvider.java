@@ -20,11 +20,15 @@
 
 package org.birthdayadapter.provider;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -45,6 +49,27 @@ public class BirthdayAdapterProvider extends ContentProvider {
     private static final int ACCOUNT_BLACKLIST = 100;
     private static final int ACCOUNT_BLACKLIST_ID = 101;
 
+    private static final int RAW_CONTACT_VERSIONS = 200;
+    private static final int RAW_CONTACT_VERSIONS_ID = 201;
+
+    private static final int SYNC_STATE = 300;
+
+    private static final int CONTACT_EVENTS = 400;
+    private static final int CONTACT_EVENTS_ID = 401;
+
+    private static final int EVENT_MAPPINGS = 500;
+    private static final int EVENT_MAPPINGS_ID = 501;
+
+    private static final int DATE_FORMAT_STATS = 600;
+
+    private static final String[] DATE_FORMAT_STATS_PROJECTION = new String[]{
+            BirthdayAdapterContract.ContactEventsColumns.ACCOUNT_TYPE + " AS "
+                    + BirthdayAdapterContract.DateFormatStatsColumns.ACCOUNT_TYPE,
+            BirthdayAdapterContract.ContactEventsColumns.FORMAT + " AS "
+                    + BirthdayAdapterContract.DateFormatStatsColumns.FORMAT,
+            "COUNT(*) AS " + BirthdayAdapterContract.DateFormatStatsColumns.COUNT
+    };
+
     /**
      * Build and return a {@link android.content.UriMatcher} that catches all {@link android.net.Uri} variations supported by
      * this {@link android.content.ContentProvider}.
@@ -56,6 +81,19 @@ public class BirthdayAdapterProvider extends ContentProvider {
         matcher.addURI(authority, BirthdayAdapterContract.PATH_ACCOUNT_BLACKLIST, ACCOUNT_BLACKLIST);
         matcher.addURI(authority, BirthdayAdapterContract.PATH_ACCOUNT_BLACKLIST + "/#", ACCOUNT_BLACKLIST_ID);
 
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_RAW_CONTACT_VERSIONS, RAW_CONTACT_VERSIONS);
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_RAW_CONTACT_VERSIONS + "/#", RAW_CONTACT_VERSIONS_ID);
+
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_SYNC_STATE, SYNC_STATE);
+
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_CONTACT_EVENTS, CONTACT_EVENTS);
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_CONTACT_EVENTS + "/#", CONTACT_EVENTS_ID);
+
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_EVENT_MAPPINGS, EVENT_MAPPINGS);
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_EVENT_MAPPINGS + "/#", EVENT_MAPPINGS_ID);
+
+        matcher.addURI(authority, BirthdayAdapterContract.PATH_DATE_FORMAT_STATS, DATE_FORMAT_STATS);
+
         return matcher;
     }
 
@@ -82,6 +120,22 @@ public class BirthdayAdapterProvider extends ContentProvider {
                 return BirthdayAdapterContract.AccountBlacklist.CONTENT_TYPE;
             case ACCOUNT_BLACKLIST_ID:
                 return BirthdayAdapterContract.AccountBlacklist.CONTENT_ITEM_TYPE;
+            case RAW_CONTACT_VERSIONS:
+                return BirthdayAdapterContract.RawContactVersions.CONTENT_TYPE;
+            case RAW_CONTACT_VERSIONS_ID:
+                return BirthdayAdapterContract.RawContactVersions.CONTENT_ITEM_TYPE;
+            case SYNC_STATE:
+                return BirthdayAdapterContract.SyncState.CONTENT_TYPE;
+            case CONTACT_EVENTS:
+                return BirthdayAdapterContract.ContactEvents.CONTENT_TYPE;
+            case CONTACT_EVENTS_ID:
+                return BirthdayAdapterContract.ContactEvents.CONTENT_ITEM_TYPE;
+            case EVENT_MAPPINGS:
+                return BirthdayAdapterContract.EventMappings.CONTENT_TYPE;
+            case EVENT_MAPPINGS_ID:
+                return BirthdayAdapterContract.EventMappings.CONTENT_ITEM_TYPE;
+            case DATE_FORMAT_STATS:
+                return BirthdayAdapterContract.DateFormatStats.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -92,19 +146,44 @@ public class BirthdayAdapterProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        Log.d(Constants.TAG, "insert(uri=" + uri + ", values=" + values.toString() + ")");
+        // called for every row written by the sync, do not build the message in release builds
+        if (BuildConfig.DEBUG) {
+            Log.d(Constants.TAG, "insert(uri=" + uri + ", values=" + values.toString() + ")");
+        }
 
         final SQLiteDatabase db = mBirthdayAdapterDatabase.getWritableDatabase();
 
         Uri rowUri = null;
         long rowId = -1;
+        final int match = sUriMatcher.match(uri);
         try {
-            final int match = sUriMatcher.match(uri);
             switch (match) {
                 case ACCOUNT_BLACKLIST:
                     rowId = db.insertOrThrow(BirthdayAdapterDatabase.Tables.ACCOUNT_BLACKLIST, null, values);
                     rowUri = BirthdayAdapterContract.AccountBlacklist.buildUri(Long.toString(rowId));
                     break;
+                case RAW_CONTACT_VERSIONS:
+                    // replace version of already known raw contact
+                    rowId = db.insertWithOnConflict(BirthdayAdapterDatabase.Tables.RAW_CONTACT_VERSIONS, null,
+                            values, SQLiteDatabase.CONFLICT_REPLACE);
+                    rowUri = BirthdayAdapterContract.RawContactVersions.buildUri(Long.toString(rowId));
+                    break;
+                case SYNC_STATE:
+                    // replace value of already existing key
+                    rowId = db.insertWithOnConflict(BirthdayAdapterDatabase.Tables.SYNC_STATE, null,
+                            values, SQLiteDatabase.CONFLICT_REPLACE);
+                    rowUri = uri;
+                    break;
+                case CONTACT_EVENTS:
+                    rowId = db.insertOrThrow(BirthdayAdapterDatabase.Tables.CONTACT_EVENTS, null, values);
+                    rowUri = BirthdayAdapterContract.ContactEvents.buildUri(Long.toString(rowId));
+                    break;
+                case EVENT_MAPPINGS:
+                    // replace mapping of already known event
+                    rowId = db.insertWithOnConflict(BirthdayAdapterDatabase.Tables.EVENT_MAPPINGS, null,
+                            values, SQLiteDatabase.CONFLICT_REPLACE);
+                    rowUri = BirthdayAdapterContract.EventMappings.buildUri(Long.toString(rowId));
+                    break;
                 default:
                     throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -112,8 +191,7 @@ public class BirthdayAdapterProvider extends ContentProvider {
             Log.e(Constants.TAG, "Constraint exception on insert! Entry already existing?");
         }
 
-        // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(match, uri);
 
         return rowUri;
     }
@@ -128,19 +206,41 @@ public class BirthdayAdapterProvider extends ContentProvider {
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         SQLiteDatabase db = mBirthdayAdapterDatabase.getReadableDatabase();
+        String groupBy = null;
 
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ACCOUNT_BLACKLIST:
                 qb.setTables(BirthdayAdapterDatabase.Tables.ACCOUNT_BLACKLIST);
                 break;
+            case RAW_CONTACT_VERSIONS:
+                qb.setTables(BirthdayAdapterDatabase.Tables.RAW_CONTACT_VERSIONS);
+                break;
+            case SYNC_STATE:
+                qb.setTables(BirthdayAdapterDatabase.Tables.SYNC_STATE);
+                break;
+            case CONTACT_EVENTS:
+                qb.setTables(BirthdayAdapterDatabase.Tables.CONTACT_EVENTS);
+                break;
+            case EVENT_MAPPINGS:
+                qb.setTables(BirthdayAdapterDatabase.Tables.EVENT_MAPPINGS);
+                break;
+            case DATE_FORMAT_STATS:
+                // counted from the mirrored contact events, the projection is fixed
+                qb.setTables(BirthdayAdapterDatabase.Tables.CONTACT_EVENTS);
+                projection = DATE_FORMAT_STATS_PROJECTION;
+                groupBy = BirthdayAdapterContract.ContactEventsColumns.ACCOUNT_TYPE + ", "
+                        + BirthdayAdapterContract.ContactEventsColumns.FORMAT;
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, null, sortOrder,
+                uri.getQueryParameter(BirthdayAdapterContract.QUERY_PARAMETER_LIMIT));
 
-        if (BuildConfig.DEBUG)
+        // do not dump the tables used by the sync, they contain one row per contact
+        if (BuildConfig.DEBUG && match == ACCOUNT_BLACKLIST)
             DatabaseUtils.dumpCursor(cursor);
         // notify through cursor
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -152,9 +252,28 @@ public class BirthdayAdapterProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        Log.e(Constants.TAG, "Not supported");
+        // see insert()
+        if (BuildConfig.DEBUG) {
+            Log.v(Constants.TAG, "update(uri=" + uri + ", values=" + values.toString() + ")");
+        }
 
-        return -1;
+        final SQLiteDatabase db = mBirthdayAdapterDatabase.getWritableDatabase();
+
+        int count;
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case CONTACT_EVENTS_ID:
+                count = db.update(BirthdayAdapterDatabase.Tables.CONTACT_EVENTS, values,
+                        buildDefaultSelection(uri, selection), selectionArgs);
+                break;
+            default:
+                Log.e(Constants.TAG, "Not supported");
+                return -1;
+        }
+
+        notifyChange(match, uri);
+
+        return count;
     }
 
     /**
@@ -176,16 +295,93 @@ public class BirthdayAdapterProvider extends ContentProvider {
                 count = db.delete(BirthdayAdapterDatabase.Tables.ACCOUNT_BLACKLIST, buildDefaultSelection(uri, selection),
                         selectionArgs);
                 break;
+            case RAW_CONTACT_VERSIONS:
+                count = db.delete(BirthdayAdapterDatabase.Tables.RAW_CONTACT_VERSIONS, selection, selectionArgs);
+                break;
+            case RAW_CONTACT_VERSIONS_ID:
+                count = db.delete(BirthdayAdapterDatabase.Tables.RAW_CONTACT_VERSIONS, buildDefaultSelection(uri, selection),
+                        selectionArgs);
+                break;
+            case SYNC_STATE:
+                count = db.delete(BirthdayAdapterDatabase.Tables.SYNC_STATE, selection, selectionArgs);
+                break;
+            case CONTACT_EVENTS:
+                count = db.delete(BirthdayAdapterDatabase.Tables.CONTACT_EVENTS, selection, selectionArgs);
+                break;
+            case EVENT_MAPPINGS:
+                count = db.delete(BirthdayAdapterDatabase.Tables.EVENT_MAPPINGS, selection, selectionArgs);
+                break;
+            case EVENT_MAPPINGS_ID:
+                count = db.delete(BirthdayAdapterDatabase.Tables.EVENT_MAPPINGS, buildDefaultSelection(uri, selection),
+                        selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(match, uri);
 
         return count;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Inserts all values in one transaction.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mBirthdayAdapterDatabase.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            int count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Applies all operations in one transaction.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mBirthdayAdapterDatabase.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Notify of changes in db. The tables written by the sync get one row per contact event and
+     * nobody observes them, so they are not notified to keep batches of the sync cheap.
+     */
+    private void notifyChange(int match, Uri uri) {
+        switch (match) {
+            case RAW_CONTACT_VERSIONS:
+            case RAW_CONTACT_VERSIONS_ID:
+            case SYNC_STATE:
+            case CONTACT_EVENTS:
+            case CONTACT_EVENTS_ID:
+            case EVENT_MAPPINGS:
+            case EVENT_MAPPINGS_ID:
+                return;
+            default:
+                getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     /**
      * Build default selection statement. If no extra selection is specified only build where clause
      * with rowId
@@ -83,4 +83,77 @@ public class ProviderHelper {
                 BirthdayAdapterContract.AccountBlacklist.DEFAULT_SORT);
     }
 
+    public static String getSyncState(Context context, String key) {
+        Cursor cursor = context.getContentResolver().query(
+                BirthdayAdapterContract.SyncState.CONTENT_URI,
+                new String[]{BirthdayAdapterContract.SyncState.VALUE},
+                BirthdayAdapterContract.SyncState.KEY + " = ?",
+                new String[]{key},
+                null);
+
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+            return null;
+        } finally {
+            if (cursor != null && !cursor.isClosed())
+                cursor.close();
+        }
+    }
+
+    public static long getSyncStateLong(Context context, String key, long defaultValue) {
+        String value = getSyncState(context, key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static void setSyncState(Context context, String key, String value) {
+        ContentValues values = new ContentValues();
+        values.put(BirthdayAdapterContract.SyncState.KEY, key);
+        values.put(BirthdayAdapterContract.SyncState.VALUE, value);
+
+        context.getContentResolver().insert(BirthdayAdapterContract.SyncState.CONTENT_URI, values);
+    }
+
+    public static void removeSyncState(Context context, String key) {
+        context.getContentResolver().delete(BirthdayAdapterContract.SyncState.CONTENT_URI,
+                BirthdayAdapterContract.SyncState.KEY + " = ?", new String[]{key});
+    }
+
+    /**
+     * Get Cursor over the stored raw contact versions, sorted by raw contact id
+     */
+    public static Cursor getRawContactVersionsCursor(Context context) {
+        return context.getContentResolver().query(
+                BirthdayAdapterContract.RawContactVersions.CONTENT_URI,
+                new String[]{BirthdayAdapterContract.RawContactVersions._ID,
+                        BirthdayAdapterContract.RawContactVersions.CONTACT_ID,
+                        BirthdayAdapterContract.RawContactVersions.VERSION},
+                null,
+                null,
+                BirthdayAdapterContract.RawContactVersions.DEFAULT_SORT);
+    }
+
+    /**
+     * Get Cursor over the number of contact events per account type and date format, sorted by
+     * account type and descending count
+     */
+    public static Cursor getDateFormatStatsCursor(Context context) {
+        return context.getContentResolver().query(
+                BirthdayAdapterContract.DateFormatStats.CONTENT_URI,
+                new String[]{BirthdayAdapterContract.DateFormatStats.ACCOUNT_TYPE,
+                        BirthdayAdapterContract.DateFormatStats.FORMAT,
+                        BirthdayAdapterContract.DateFormatStats.COUNT},
+                null,
+                null,
+                BirthdayAdapterContract.DateFormatStats.DEFAULT_SORT);
+    }
+
 }
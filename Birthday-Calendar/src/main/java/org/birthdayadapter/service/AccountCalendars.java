@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.accounts.Account;
+import android.annotation.SuppressLint;
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.BaseColumns;
+import android.provider.CalendarContract.Calendars;
+import android.text.TextUtils;
+
+import org.birthdayadapter.R;
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.provider.ProviderHelper;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Calendars of the events of one sync. By default all events are synced into the birthday
+ * calendar. If enabled in the preferences, the events of each contact account are synced into a
+ * separate calendar, created on demand. Events of raw contacts without account stay in the
+ * birthday calendar.
+ * <p/>
+ * The contact account of a calendar is stored in Calendars.CAL_SYNC1 and CAL_SYNC2. Calendars of
+ * blacklisted accounts are hidden instead of deleting their events, see
+ * {@link ContactEventReader}. A calendar that has been deleted since the last sync is rebuilt
+ * on its own by syncing the contacts of its account again.
+ */
+@SuppressLint("NewApi")
+class AccountCalendars {
+    private static final String ACCOUNT_CALENDAR_NAME = "birthday_adapter_account";
+
+    private final Context mContext;
+    private final ContentProviderClient mClient;
+    private final boolean mEnabled;
+    private final long mMainCalendarId;
+    private final HashSet<Account> mBlacklist;
+    private final HashMap<Account, Long> mCalendarIds = new HashMap<>();
+    private final HashSet<Account> mMissingAccounts = new HashSet<>();
+
+    private AccountCalendars(Context context, ContentProviderClient client, boolean enabled,
+                             long mainCalendarId, HashSet<Account> blacklist) {
+        mContext = context;
+        mClient = client;
+        mEnabled = enabled;
+        mMainCalendarId = mainCalendarId;
+        mBlacklist = blacklist;
+    }
+
+    /**
+     * Reads the account calendars and shows only the calendars of accounts not in the blacklist
+     *
+     * @param mainCalendarId id of the birthday calendar, see CalendarSyncAdapterService
+     * @return null if the calendars could not be read
+     */
+    static AccountCalendars load(Context context, ContentProviderClient client, SyncConfig config,
+                                 long mainCalendarId, HashSet<Account> blacklist) {
+        AccountCalendars calendars = new AccountCalendars(context, client,
+                config.getAccountCalendars(), mainCalendarId, blacklist);
+        try {
+            if (!calendars.query()) {
+                Log.e(Constants.TAG, "Unable to query account calendars! Cursor returns null!");
+                return null;
+            }
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Unable to query account calendars", e);
+            return null;
+        }
+        return calendars;
+    }
+
+    /**
+     * Reads all account calendars, also if the preference is disabled, because they may still
+     * contain events
+     *
+     * @return false if the calendars could not be read
+     */
+    private boolean query() throws RemoteException {
+        Uri calendarUri = CalendarSyncAdapterService.getBirthdayAdapterUri(Calendars.CONTENT_URI);
+        Cursor cursor = mClient.query(calendarUri,
+                new String[]{BaseColumns._ID, Calendars.CAL_SYNC1, Calendars.CAL_SYNC2,
+                        Calendars.VISIBLE},
+                Calendars.ACCOUNT_NAME + " = ? AND " + Calendars.ACCOUNT_TYPE + " = ? AND "
+                        + Calendars.NAME + " = ?",
+                new String[]{Constants.ACCOUNT_NAME, Constants.ACCOUNT_TYPE,
+                        ACCOUNT_CALENDAR_NAME}, null);
+        if (cursor == null) {
+            return false;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                if (TextUtils.isEmpty(cursor.getString(1))
+                        || TextUtils.isEmpty(cursor.getString(2))) {
+                    continue;
+                }
+                Account account = new Account(cursor.getString(2), cursor.getString(1));
+                long calendarId = cursor.getLong(0);
+                mCalendarIds.put(account, calendarId);
+
+                int visible = isVisible(account) ? 1 : 0;
+                if (cursor.getInt(3) != visible) {
+                    Log.d(Constants.TAG, "Changing visibility of calendar of " + account.name
+                            + " to " + visible);
+                    ContentValues values = new ContentValues();
+                    values.put(Calendars.VISIBLE, visible);
+                    values.put(Calendars.SYNC_EVENTS, visible);
+                    mClient.update(ContentUris.withAppendedId(calendarUri, calendarId), values,
+                            null, null);
+                }
+            }
+        } finally {
+            if (!cursor.isClosed())
+                cursor.close();
+        }
+
+        for (Map.Entry<Account, Long> entry : parse(ProviderHelper.getSyncState(mContext,
+                BirthdayAdapterContract.SyncState.KEY_ACCOUNT_CALENDARS)).entrySet()) {
+            if (!entry.getValue().equals(mCalendarIds.get(entry.getKey()))) {
+                mMissingAccounts.add(entry.getKey());
+            }
+        }
+        return true;
+    }
+
+    private boolean isVisible(Account account) {
+        return !mBlacklist.contains(account);
+    }
+
+    /**
+     * @return true if the events of each account are synced into a separate calendar
+     */
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    long getMainCalendarId() {
+        return mMainCalendarId;
+    }
+
+    /**
+     * @return ids of the birthday calendar and all account calendars
+     */
+    ArrayList<Long> getCalendarIds() {
+        ArrayList<Long> calendarIds = new ArrayList<>(mCalendarIds.values());
+        calendarIds.add(mMainCalendarId);
+        return calendarIds;
+    }
+
+    /**
+     * @return accounts whose calendar has been deleted since the last sync, the mappings of its
+     * events are outdated and the events of its contacts must be synced again
+     */
+    HashSet<Account> getMissingAccounts() {
+        return mMissingAccounts;
+    }
+
+    /**
+     * Gets the calendar of the events of the given contact account and creates it if needed
+     *
+     * @return -1 if the calendar could not be created
+     */
+    long getCalendarId(String accountName, String accountType) {
+        if (!mEnabled || TextUtils.isEmpty(accountName) || TextUtils.isEmpty(accountType)) {
+            return mMainCalendarId;
+        }
+
+        Account account = new Account(accountName, accountType);
+        Long calendarId = mCalendarIds.get(account);
+        if (calendarId != null) {
+            return calendarId;
+        }
+
+        ContentValues values = CalendarSyncAdapterService.getCalendarValues(mContext,
+                ACCOUNT_CALENDAR_NAME, mContext.getString(R.string.calendar_display_name_account,
+                        accountName));
+        values.put(Calendars.CAL_SYNC1, accountType);
+        values.put(Calendars.CAL_SYNC2, accountName);
+        int visible = isVisible(account) ? 1 : 0;
+        values.put(Calendars.VISIBLE, visible);
+        values.put(Calendars.SYNC_EVENTS, visible);
+
+        Uri uri;
+        try {
+            uri = mClient.insert(
+                    CalendarSyncAdapterService.getBirthdayAdapterUri(Calendars.CONTENT_URI),
+                    values);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Creating calendar of " + accountName + " failed", e);
+            return -1;
+        }
+        if (uri == null) {
+            Log.e(Constants.TAG, "Creating calendar of " + accountName + " failed");
+            return -1;
+        }
+        calendarId = ContentUris.parseId(uri);
+        Log.d(Constants.TAG, "Created calendar " + calendarId + " of " + accountName);
+        mCalendarIds.put(account, calendarId);
+
+        // known immediately, the calendar may be deleted before this sync finishes
+        String state = ProviderHelper.getSyncState(mContext,
+                BirthdayAdapterContract.SyncState.KEY_ACCOUNT_CALENDARS);
+        ProviderHelper.setSyncState(mContext,
+                BirthdayAdapterContract.SyncState.KEY_ACCOUNT_CALENDARS,
+                (state == null ? "" : state) + format(account, calendarId));
+        return calendarId;
+    }
+
+    /**
+     * Deletes the account calendars, if the events of all accounts are synced into the birthday
+     * calendar. Only called after a successful complete sync, which moved all events into the
+     * birthday calendar.
+     */
+    void deleteUnused() {
+        if (mEnabled || mCalendarIds.isEmpty()) {
+            return;
+        }
+
+        Log.d(Constants.TAG, "Deleting " + mCalendarIds.size() + " account calendars...");
+        try {
+            mClient.delete(
+                    CalendarSyncAdapterService.getBirthdayAdapterUri(Calendars.CONTENT_URI),
+                    Calendars.ACCOUNT_NAME + " = ? AND " + Calendars.ACCOUNT_TYPE + " = ? AND "
+                            + Calendars.NAME + " = ?",
+                    new String[]{Constants.ACCOUNT_NAME, Constants.ACCOUNT_TYPE,
+                            ACCOUNT_CALENDAR_NAME});
+            mCalendarIds.clear();
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Deleting account calendars failed", e);
+        }
+    }
+
+    /**
+     * Stores the current account calendars after a successful sync. Missing calendars have been
+     * rebuilt and are not checked again.
+     */
+    void commit() {
+        StringBuilder state = new StringBuilder();
+        for (Map.Entry<Account, Long> entry : mCalendarIds.entrySet()) {
+            state.append(format(entry.getKey(), entry.getValue()));
+        }
+        ProviderHelper.setSyncState(mContext,
+                BirthdayAdapterContract.SyncState.KEY_ACCOUNT_CALENDARS, state.toString());
+    }
+
+    private static String format(Account account, long calendarId) {
+        return calendarId + "\t" + account.type + "\t" + account.name + "\n";
+    }
+
+    private static HashMap<Account, Long> parse(String state) {
+        HashMap<Account, Long> calendarIds = new HashMap<>();
+        if (state == null) {
+            return calendarIds;
+        }
+        for (String line : TextUtils.split(state, "\n")) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length == 3 && !fields[1].isEmpty() && !fields[2].isEmpty()) {
+                try {
+                    calendarIds.put(new Account(fields[2], fields[1]), Long.parseLong(fields[0]));
+                } catch (NumberFormatException e) {
+                    Log.e(Constants.TAG, "Invalid account calendar " + line, e);
+                }
+            }
+        }
+        return calendarIds;
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.birthdayadapter.service;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.provider.ProviderHelper;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Collects ContentProviderOperations for the calendar provider and applies them in batches.
+ * <p/>
+ * The size of each operation in the binder transaction is estimated from its uri and values, the
+ * batch is applied when the estimated size exceeds a byte budget. If a batch nevertheless fails
+ * with a TransactionTooLargeException, it is split and applied in smaller batches.
+ * <p/>
+ * Changes of the EventMappings are collected, too. They are applied after the calendar batch,
+ * because the ids of inserted events and reminders are only known from its results.
+ * <p/>
+ * Full batches are applied by a writer thread, so that the sync thread can read the contacts of
+ * the next batch meanwhile. The queue between them is bounded: If the writer falls behind, the
+ * sync thread blocks until a batch has been applied.
+ */
+class CalendarBatch {
+    /**
+     * intermediate commit - otherwise the binder transaction fails on large operationList. The
+     * binder buffer of 1 MB is shared by all transactions of the process.
+     */
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    // type, selection, back references, expected count and yield flag of an operation
+    private static final int OPERATION_OVERHEAD_BYTES = 64;
+
+    // full batches waiting for the writer, in addition to the one it is applying
+    private static final int QUEUE_CAPACITY = 2;
+
+    /**
+     * Insert referencing the result of an earlier operation of the same group, rebuilt with a
+     * shifted index if the batch is split
+     */
+    private static class BackReference {
+        int index;
+        Uri uri;
+        ContentValues values;
+        String key;
+        int previousResult;
+    }
+
+    /**
+     * Mapping of an event, completed with the ids from the results of the calendar batch
+     */
+    private static class PendingMapping {
+        ContentValues values;
+        long eventId;
+        int eventIndex;
+        int reminderIndex;
+        int reminderCount;
+    }
+
+    /**
+     * Operations of one batch, handed over to the writer thread when the batch is full
+     */
+    private static class Operations {
+        final ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+        final ArrayList<BackReference> backReferences = new ArrayList<>();
+        // indices between groups of operations, the batch may be split there
+        final ArrayList<Integer> groupStarts = new ArrayList<>();
+        final ArrayList<ContentProviderOperation> mappingOperationList = new ArrayList<>();
+        final ArrayList<PendingMapping> pendingMappings = new ArrayList<>();
+        int bytes = 0;
+
+        boolean isEmpty() {
+            return operationList.isEmpty() && mappingOperationList.isEmpty();
+        }
+    }
+
+    // tells the writer thread to stop
+    private static final Operations END = new Operations();
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final ContentProviderClient mCalendarClient;
+    private final int mMaxBytes;
+    private final ArrayBlockingQueue<Operations> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private Operations mOperations = new Operations();
+    private Thread mWriter;
+    private volatile boolean mFailed = false;
+
+    /**
+     * @param contentResolver used to apply the changes of the EventMappings
+     * @param calendarClient  client of the calendar provider, used to apply the calendar batch
+     */
+    CalendarBatch(Context context, ContentResolver contentResolver,
+                  ContentProviderClient calendarClient) {
+        this(context, contentResolver, calendarClient, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes estimated size of the binder transaction at which the batch is applied
+     */
+    CalendarBatch(Context context, ContentResolver contentResolver,
+                  ContentProviderClient calendarClient, int maxBytes) {
+        mContext = context;
+        mContentResolver = contentResolver;
+        mCalendarClient = calendarClient;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return index of the next added operation, used for back references
+     */
+    int size() {
+        return mOperations.operationList.size();
+    }
+
+    /**
+     * Adds an operation without values or with only a few small values
+     */
+    void add(ContentProviderOperation operation) {
+        add(operation, null);
+    }
+
+    /**
+     * @param values values of the operation, used to estimate its size
+     */
+    void add(ContentProviderOperation operation, ContentValues values) {
+        mOperations.operationList.add(operation);
+        mOperations.bytes += estimateSize(operation.getUri(), values);
+    }
+
+    /**
+     * Adds an insert with the values and the id of the result of an earlier operation of the same
+     * group, see ContentProviderOperation.Builder.withValueBackReference()
+     */
+    void addWithBackReference(Uri uri, ContentValues values, String key, int previousResult) {
+        BackReference backReference = new BackReference();
+        backReference.index = mOperations.operationList.size();
+        backReference.uri = uri;
+        backReference.values = values;
+        backReference.key = key;
+        backReference.previousResult = previousResult;
+        mOperations.backReferences.add(backReference);
+
+        mOperations.operationList.add(buildBackReference(backReference, 0));
+        mOperations.bytes += estimateSize(uri, values);
+    }
+
+    /**
+     * Adds an operation on the EventMappings, which does not depend on the calendar results
+     */
+    void addMappingOperation(ContentProviderOperation operation) {
+        mOperations.mappingOperationList.add(operation);
+    }
+
+    /**
+     * Stores the mapping of an event after the batch has been applied.
+     *
+     * @param eventId       id of an existing event, ignored if eventIndex is not -1
+     * @param eventIndex    index of the operation inserting the event, -1 for existing events
+     * @param reminderIndex index of the first operation inserting a reminder of the event
+     * @param reminderCount number of inserted reminders, -1 to keep the reminder ids in values.
+     *                      Otherwise the ids of the inserted reminders are appended to the ids of
+     *                      kept reminders in values, if any.
+     */
+    void addMapping(ContentValues values, long eventId, int eventIndex, int reminderIndex,
+                    int reminderCount) {
+        PendingMapping mapping = new PendingMapping();
+        mapping.values = values;
+        mapping.eventId = eventId;
+        mapping.eventIndex = eventIndex;
+        mapping.reminderIndex = reminderIndex;
+        mapping.reminderCount = reminderCount;
+        mOperations.pendingMappings.add(mapping);
+    }
+
+    /**
+     * Hands the batch over to the writer thread if it is full. Must only be called between
+     * complete groups of operations, otherwise back references would point into the previous
+     * batch.
+     */
+    void applyIfFull() {
+        if (mOperations.bytes > mMaxBytes) {
+            submit();
+        } else if (!mOperations.operationList.isEmpty()) {
+            mOperations.groupStarts.add(mOperations.operationList.size());
+        }
+    }
+
+    /**
+     * Applies the remaining operations and waits until the writer thread applied all batches.
+     */
+    void apply() {
+        submit();
+        if (mWriter == null) {
+            return;
+        }
+
+        try {
+            mQueue.put(END);
+            mWriter.join();
+            mWriter = null;
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Interrupted while applying the batch!", e);
+            cancel();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drops the batches not yet applied and waits until the writer thread stopped after the batch
+     * it is applying, so that no write happens after the sync released the calendar and the
+     * SyncLock. Nothing happens if all batches have been applied.
+     */
+    void cancel() {
+        if (mWriter == null) {
+            return;
+        }
+
+        Log.d(Constants.TAG, "Cancelling the batch...");
+        mFailed = true;
+        mOperations = new Operations();
+        // only this thread adds to the queue, so there is space for END after clearing it
+        mQueue.clear();
+        mQueue.offer(END);
+
+        // the sync is usually cancelled by an interrupt, wait nevertheless
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mWriter.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mWriter = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the current batch for the writer thread and starts a new batch
+     */
+    private void submit() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+
+        if (mWriter == null) {
+            mWriter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "CalendarBatchWriter");
+            mWriter.start();
+        }
+
+        try {
+            // blocks if the writer falls behind
+            mQueue.put(mOperations);
+            mOperations = new Operations();
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Interrupted while queueing the batch!", e);
+            cancel();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs on the writer thread and applies the queued batches until END is taken
+     */
+    private void write() {
+        try {
+            Operations operations;
+            while ((operations = mQueue.take()) != END) {
+                apply(operations);
+            }
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Writer interrupted!", e);
+            mFailed = true;
+        }
+    }
+
+    /**
+     * Applies a batch.
+     * <p/>
+     * A failed batch is not retried here. Because every sync reconciles the calendar with the
+     * contacts, the missing changes are done by the next sync. As the mappings may then differ
+     * from the calendar, they are rebuilt from the calendar on the next sync.
+     */
+    private void apply(Operations operations) {
+        try {
+            Log.d(Constants.TAG, "Start applying the batch of " + operations.operationList.size()
+                    + " operations with about " + operations.bytes + " bytes...");
+            ContentProviderResult[] results =
+                    new ContentProviderResult[operations.operationList.size()];
+            applyOperations(operations, 0, operations.operationList.size(), results);
+
+            for (PendingMapping mapping : operations.pendingMappings) {
+                operations.mappingOperationList.add(buildMappingOperation(mapping, results));
+            }
+            if (!operations.mappingOperationList.isEmpty()) {
+                mContentResolver.applyBatch(BirthdayAdapterContract.CONTENT_AUTHORITY,
+                        operations.mappingOperationList);
+            }
+            Log.d(Constants.TAG, "Applying the batch was successful!");
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Applying batch error!", e);
+            mFailed = true;
+            ProviderHelper.removeSyncState(mContext,
+                    BirthdayAdapterContract.SyncState.KEY_MAPPED_CALENDAR_ID);
+        }
+    }
+
+    /**
+     * Applies the operations from start to end and stores their results. If the transaction is
+     * too large, the operations are split at the group boundary closest to the middle and applied
+     * in two batches.
+     * <p/>
+     * A too large transaction has not been applied: The results are always smaller than the
+     * operations, so it is the transaction sending the operations that fails.
+     */
+    private void applyOperations(Operations batch, int start, int end,
+                                 ContentProviderResult[] results)
+            throws RemoteException, OperationApplicationException {
+        if (start == end) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> operations;
+        if (start == 0 && end == batch.operationList.size()) {
+            operations = batch.operationList;
+        } else {
+            operations = new ArrayList<>(batch.operationList.subList(start, end));
+            // back references are relative to the start of the batch
+            for (BackReference backReference : batch.backReferences) {
+                if (backReference.index >= start && backReference.index < end) {
+                    operations.set(backReference.index - start,
+                            buildBackReference(backReference, start));
+                }
+            }
+        }
+
+        try {
+            long startTime = SystemClock.elapsedRealtime();
+            ContentProviderResult[] batchResults = mCalendarClient.applyBatch(operations);
+            Log.d(Constants.TAG, "Applied " + operations.size() + " operations to the calendar in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+            System.arraycopy(batchResults, 0, results, start, batchResults.length);
+        } catch (RemoteException e) {
+            int split = findSplit(batch, start, end);
+            if (!isTransactionTooLarge(e) || split == -1) {
+                throw e;
+            }
+
+            Log.w(Constants.TAG, "Batch of " + (end - start)
+                    + " operations is too large, splitting it at " + split + "...");
+            applyOperations(batch, start, split, results);
+            applyOperations(batch, split, end, results);
+        }
+    }
+
+    /**
+     * @return the group boundary closest to the middle of start and end, -1 if there is none
+     */
+    private static int findSplit(Operations batch, int start, int end) {
+        int middle = (start + end) / 2;
+        int split = -1;
+        for (int groupStart : batch.groupStarts) {
+            if (groupStart > start && groupStart < end
+                    && (split == -1 || Math.abs(groupStart - middle) < Math.abs(split - middle))) {
+                split = groupStart;
+            }
+        }
+        return split;
+    }
+
+    private static boolean isTransactionTooLarge(RemoteException e) {
+        return Build.VERSION.SDK_INT >= 15 && e instanceof TransactionTooLargeException;
+    }
+
+    private static ContentProviderOperation buildBackReference(BackReference backReference,
+                                                               int start) {
+        return ContentProviderOperation.newInsert(backReference.uri)
+                .withValues(backReference.values)
+                .withValueBackReference(backReference.key, backReference.previousResult - start)
+                .build();
+    }
+
+    /**
+     * Estimates the size of an operation and its result in the binder transactions, strings are
+     * parceled as UTF-16
+     */
+    private static int estimateSize(Uri uri, ContentValues values) {
+        // the uri is parceled in parts and the result of an insert contains it again
+        int size = OPERATION_OVERHEAD_BYTES + 3 * estimateSize(uri.toString());
+        if (values != null) {
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                size += estimateSize(entry.getKey()) + 4;
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    size += estimateSize((String) value);
+                } else if (value instanceof byte[]) {
+                    size += 4 + ((byte[]) value).length;
+                } else if (value instanceof Long || value instanceof Double) {
+                    size += 8;
+                } else if (value != null) {
+                    size += 4;
+                }
+            }
+        }
+        return size;
+    }
+
+    private static int estimateSize(String string) {
+        return 4 + (string.length() + 1) * 2 + 2;
+    }
+
+    private static ContentProviderOperation buildMappingOperation(PendingMapping mapping,
+                                                                  ContentProviderResult[] results) {
+        ContentValues values = new ContentValues(mapping.values);
+        if (mapping.eventIndex != -1) {
+            values.put(BirthdayAdapterContract.EventMappings._ID,
+                    ContentUris.parseId(results[mapping.eventIndex].uri));
+        } else {
+            values.put(BirthdayAdapterContract.EventMappings._ID, mapping.eventId);
+        }
+        if (mapping.reminderCount != -1) {
+            StringBuilder reminderIds = new StringBuilder();
+            String keptReminderIds = values.getAsString(
+                    BirthdayAdapterContract.EventMappings.REMINDER_IDS);
+            if (keptReminderIds != null) {
+                reminderIds.append(keptReminderIds);
+            }
+            for (int i = 0; i < mapping.reminderCount; i++) {
+                if (reminderIds.length() > 0) {
+                    reminderIds.append(',');
+                }
+                reminderIds.append(ContentUris.parseId(results[mapping.reminderIndex + i].uri));
+            }
+            values.put(BirthdayAdapterContract.EventMappings.REMINDER_IDS, reminderIds.toString());
+        }
+        return ContentProviderOperation
+                .newInsert(BirthdayAdapterContract.EventMappings.CONTENT_URI)
+                .withValues(values).build();
+    }
+
+    /**
+     * @return true if applying any batch failed
+     */
+    boolean hasFailed() {
+        return mFailed;
+    }
+}
@@ -35,13 +35,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SyncResult;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.Calendars;
@@ -54,26 +53,46 @@ import android.text.format.Time;
 
 import org.birthdayadapter.BuildConfig;
 import org.birthdayadapter.R;
+import org.birthdayadapter.provider.BirthdayAdapterContract;
 import org.birthdayadapter.provider.ProviderHelper;
 import org.birthdayadapter.util.AccountHelper;
 import org.birthdayadapter.util.Constants;
 import org.birthdayadapter.util.Log;
 import org.birthdayadapter.util.PreferencesHelper;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.TreeSet;
 
 @SuppressLint("NewApi")
 public class CalendarSyncAdapterService extends Service {
 
     private static String CALENDAR_COLUMN_NAME = "birthday_adapter";
 
+    /**
+     * Changed contacts are synced in chunks, their ids are part of the query selections
+     */
+    private static final int MAX_CONTACTS_PER_QUERY = 200;
+
+    /**
+     * If more contacts changed, a complete sync in one pass is faster than many chunks
+     */
+    private static final int MAX_CHANGED_CONTACTS = 2000;
+
+    /**
+     * Number of contacts whose events are generated together, see {@link EventGenerator}
+     */
+    private static final int CONTACTS_PER_CHUNK = 256;
+
+    /**
+     * Number of remaining existing events read at once after the last chunk of contacts
+     */
+    private static final int MAX_REMAINING_EVENTS = 200;
+
     public CalendarSyncAdapterService() {
         super();
     }
@@ -121,46 +140,72 @@ public class CalendarSyncAdapterService extends Service {
     }
 
     /**
-     * Updates calendar color
+     * Acquires a client of the calendar provider for calls outside of the sync adapter. An
+     * unstable client does not kill this process if the calendar provider dies.
+     *
+     * @return null if the calendar provider is not available
+     */
+    private static ContentProviderClient acquireCalendarClient(Context context) {
+        ContentResolver contentResolver = context.getContentResolver();
+        if (Build.VERSION.SDK_INT >= 16) {
+            return contentResolver.acquireUnstableContentProviderClient(CalendarContract.AUTHORITY);
+        } else {
+            return contentResolver.acquireContentProviderClient(CalendarContract.AUTHORITY);
+        }
+    }
+
+    /**
+     * Updates the color of the birthday calendar and the account calendars
      */
     public static void updateCalendarColor(Context context) {
         int color = PreferencesHelper.getColor(context);
-        ContentResolver contentResolver = context.getContentResolver();
 
-        Uri uri = ContentUris.withAppendedId(getBirthdayAdapterUri(Calendars.CONTENT_URI),
-                getCalendar(context));
+        ContentProviderClient client = acquireCalendarClient(context);
+        if (client == null) {
+            Log.e(Constants.TAG, "Unable to get calendar provider!");
+            return;
+        }
 
-        Log.d(Constants.TAG, "Updating calendar color to " + color + " with uri " + uri.toString());
+        try {
+            long calendarId = getCalendar(context, client);
+            if (calendarId == -1) {
+                Log.e(Constants.TAG, "Unable to create calendar");
+                return;
+            }
 
-        ContentProviderClient client = contentResolver
-                .acquireContentProviderClient(CalendarContract.AUTHORITY);
+            Log.d(Constants.TAG, "Updating calendar color to " + color);
 
-        ContentValues values = new ContentValues();
-        values.put(Calendars.CALENDAR_COLOR, color);
-        try {
-            client.update(uri, values, null, null);
+            ContentValues values = new ContentValues();
+            values.put(Calendars.CALENDAR_COLOR, color);
+            client.update(getBirthdayAdapterUri(Calendars.CONTENT_URI), values,
+                    Calendars.ACCOUNT_NAME + " = ? AND " + Calendars.ACCOUNT_TYPE + " = ?",
+                    new String[]{Constants.ACCOUNT_NAME, Constants.ACCOUNT_TYPE});
         } catch (RemoteException e) {
             Log.e(Constants.TAG, "Error while updating calendar color!", e);
+        } finally {
+            client.release();
         }
-        client.release();
     }
 
     /**
-     * Gets calendar id, when no calendar is present, create one!
+     * Gets calendar id, when no calendar is present, create one! Synchronized, because the color
+     * of the calendar may be changed while a sync is running, both must not create a calendar.
      */
-    private static long getCalendar(Context context) {
+    private static synchronized long getCalendar(Context context, ContentProviderClient client)
+            throws RemoteException {
         Log.d(Constants.TAG, "getCalendar Method...");
 
-        ContentResolver contentResolver = context.getContentResolver();
-
         // Find the calendar if we've got one
         Uri calenderUri = getBirthdayAdapterUri(Calendars.CONTENT_URI);
 
         // be sure to select the birthday calendar only (additionally to appendQueries in
-        // getBirthdayAdapterUri for Android < 4)
-        Cursor cursor = contentResolver.query(calenderUri, new String[]{BaseColumns._ID},
-                Calendars.ACCOUNT_NAME + " = ? AND " + Calendars.ACCOUNT_TYPE + " = ?",
-                new String[]{Constants.ACCOUNT_NAME, Constants.ACCOUNT_TYPE}, null);
+        // getBirthdayAdapterUri for Android < 4), not one of the account calendars, see
+        // AccountCalendars
+        Cursor cursor = client.query(calenderUri, new String[]{BaseColumns._ID},
+                Calendars.ACCOUNT_NAME + " = ? AND " + Calendars.ACCOUNT_TYPE + " = ? AND "
+                        + Calendars.NAME + " = ?",
+                new String[]{Constants.ACCOUNT_NAME, Constants.ACCOUNT_TYPE,
+                        CALENDAR_COLUMN_NAME}, null);
 
         try {
             if (cursor != null && cursor.moveToNext()) {
@@ -170,28 +215,16 @@ public class CalendarSyncAdapterService extends Service {
 
                 ContentProviderOperation.Builder builder = ContentProviderOperation
                         .newInsert(calenderUri);
-                builder.withValue(Calendars.ACCOUNT_NAME, Constants.ACCOUNT_NAME);
-                builder.withValue(Calendars.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
-                builder.withValue(Calendars.NAME, CALENDAR_COLUMN_NAME);
-                builder.withValue(Calendars.CALENDAR_DISPLAY_NAME,
-                        context.getString(R.string.calendar_display_name));
-                builder.withValue(Calendars.CALENDAR_COLOR, PreferencesHelper.getColor(context));
-                if (BuildConfig.DEBUG) {
-                    builder.withValue(Calendars.CALENDAR_ACCESS_LEVEL, Calendars.CAL_ACCESS_EDITOR);
-                } else {
-                    builder.withValue(Calendars.CALENDAR_ACCESS_LEVEL, Calendars.CAL_ACCESS_READ);
-                }
-                builder.withValue(Calendars.OWNER_ACCOUNT, Constants.ACCOUNT_NAME);
-                builder.withValue(Calendars.SYNC_EVENTS, 1);
-                builder.withValue(Calendars.VISIBLE, 1);
+                builder.withValues(getCalendarValues(context, CALENDAR_COLUMN_NAME,
+                        context.getString(R.string.calendar_display_name)));
                 operationList.add(builder.build());
                 try {
-                    contentResolver.applyBatch(CalendarContract.AUTHORITY, operationList);
+                    client.applyBatch(operationList);
                 } catch (Exception e) {
                     Log.e(Constants.TAG, "getCalendar() failed", e);
                     return -1;
                 }
-                return getCalendar(context);
+                return getCalendar(context, client);
             }
         } finally {
             if (cursor != null && !cursor.isClosed())
@@ -200,32 +233,109 @@ public class CalendarSyncAdapterService extends Service {
     }
 
     /**
-     * Get a new ContentProviderOperation to insert a event
+     * Get values of a new calendar of the birthday adapter account
      */
-    private static ContentProviderOperation insertEvent(Context context, long calendarId,
-                                                        Date eventDate, int year, String title, String lookupKey) {
-        ContentProviderOperation.Builder builder;
+    static ContentValues getCalendarValues(Context context, String name, String displayName) {
+        ContentValues values = new ContentValues();
+        values.put(Calendars.ACCOUNT_NAME, Constants.ACCOUNT_NAME);
+        values.put(Calendars.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
+        values.put(Calendars.NAME, name);
+        values.put(Calendars.CALENDAR_DISPLAY_NAME, displayName);
+        values.put(Calendars.CALENDAR_COLOR, SyncConfig.get(context).getColor());
+        if (BuildConfig.DEBUG) {
+            values.put(Calendars.CALENDAR_ACCESS_LEVEL, Calendars.CAL_ACCESS_EDITOR);
+        } else {
+            values.put(Calendars.CALENDAR_ACCESS_LEVEL, Calendars.CAL_ACCESS_READ);
+        }
+        values.put(Calendars.OWNER_ACCOUNT, Constants.ACCOUNT_NAME);
+        values.put(Calendars.SYNC_EVENTS, 1);
+        values.put(Calendars.VISIBLE, 1);
+        return values;
+    }
 
-        builder = ContentProviderOperation.newInsert(getBirthdayAdapterUri(Events.CONTENT_URI));
+    /**
+     * Builds the stable key of an event, stored in Events._SYNC_ID. It identifies the event of a
+     * contact event in a specific year over multiple syncs and is used to reconcile the existing
+     * events of the birthday calendar with the events generated from the contacts.
+     */
+    static String buildEventKey(String lookupKey, int eventType, String eventLabel,
+                                        int year) {
+        return lookupKey + "|" + eventType + "|" + (eventLabel == null ? "" : eventLabel) + "|"
+                + year;
+    }
 
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(eventDate);
-        cal.set(Calendar.YEAR, year);
-        cal.set(Calendar.HOUR, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
+    /**
+     * Builds the contact key of an event, stored in Events.SYNC_DATA2. The contact id is padded
+     * with zeros, thus sorting events by this key sorts them numerically by contact id.
+     */
+    static String buildContactKey(long contactId) {
+        return String.format(Locale.US, "%019d", contactId);
+    }
+
+    /**
+     * Builds a selection matching the events of the given contacts
+     *
+     * @param column column containing the contact key
+     */
+    static String buildContactKeySelection(String column, Collection<Long> contactIds) {
+        StringBuilder contactKeys = new StringBuilder();
+        for (long contactId : contactIds) {
+            if (contactKeys.length() > 0) {
+                contactKeys.append(',');
+            }
+            // contact keys only consist of digits
+            contactKeys.append('\'').append(buildContactKey(contactId)).append('\'');
+        }
+        return column + " IN (" + contactKeys + ")";
+    }
+
+    /**
+     * Builds the signature of the enabled reminders, stored in Events.SYNC_DATA1. Reminders are
+     * only rewritten for an event when its signature differs from the current preferences.
+     */
+    static String buildReminderSignature(int[] reminderMinutes) {
+        StringBuilder signature = new StringBuilder();
+        for (int minutes : reminderMinutes) {
+            if (minutes != Constants.DISABLED_REMINDER) {
+                if (signature.length() > 0) {
+                    signature.append(',');
+                }
+                signature.append(minutes);
+            }
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Get the uri of the button to open the contact, null if not supported
+     */
+    static String buildCustomAppUri(String lookupKey) {
+        if (Build.VERSION.SDK_INT >= 16 && lookupKey != null) {
+            return Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_LOOKUP_URI, lookupKey)
+                    .toString();
+        }
+        return null;
+    }
+
+    /**
+     * Get values of an event
+     *
+     * @param customAppUri see {@link #buildCustomAppUri(String)}, the same for all years
+     */
+    static ContentValues getEventValues(Context context, long calendarId, long dtstart,
+                                                String title, String customAppUri,
+                                                String contactKey, String eventKey,
+                                                String reminderSignature) {
+        ContentValues values = new ContentValues();
 
         /*
-         * Allday events have to be set in UTC!
+         * Allday events have to be set in UTC, dtstart is midnight UTC, see EventYears!
          * 
          * Without UTC it results in: CalendarProvider2 W insertInTransaction: allDay is true but
          * sec, min, hour were not 0.
          * http://stackoverflow.com/questions/3440172/getting-exception-when
          * -inserting-events-in-android-calendar
          */
-        cal.setTimeZone(TimeZone.getTimeZone("UTC"));
-        // cal.setTimeZone(TimeZone.getTimeZone(Time.getCurrentTimezone()));
 
         /*
          * Define over entire day.
@@ -233,25 +343,24 @@ public class CalendarSyncAdapterService extends Service {
          * Note: ALL_DAY is enough on original Android calendar, but some calendar apps (Business
          * Calendar) do not display the event if time between dtstart and dtend is 0
          */
-        long dtstart = cal.getTimeInMillis();
         long dtend = dtstart + DateUtils.DAY_IN_MILLIS;
 
-        builder.withValue(Events.CALENDAR_ID, calendarId);
-        builder.withValue(Events.DTSTART, dtstart);
-        builder.withValue(Events.DTEND, dtend);
-        builder.withValue(Events.EVENT_TIMEZONE, "UTC"); // ALL_DAY events must be UTC
-        // builder.withValue(Events.EVENT_TIMEZONE, Time.getCurrentTimezone());
+        values.put(Events.CALENDAR_ID, calendarId);
+        values.put(Events.DTSTART, dtstart);
+        values.put(Events.DTEND, dtend);
+        values.put(Events.EVENT_TIMEZONE, "UTC"); // ALL_DAY events must be UTC
+        // values.put(Events.EVENT_TIMEZONE, Time.getCurrentTimezone());
 
-        builder.withValue(Events.ALL_DAY, 1);
-        builder.withValue(Events.TITLE, title);
-        builder.withValue(Events.STATUS, Events.STATUS_CONFIRMED);
+        values.put(Events.ALL_DAY, 1);
+        values.put(Events.TITLE, title);
+        values.put(Events.STATUS, Events.STATUS_CONFIRMED);
 
         /*
          * Enable reminders for this event
          * 
          * Note: Needs to be explicitly set on Android < 4 to enable reminders
          */
-        builder.withValue(Events.HAS_ALARM, 1);
+        values.put(Events.HAS_ALARM, 1);
 
         /*
          * Set availability to free.
@@ -260,612 +369,724 @@ public class CalendarSyncAdapterService extends Service {
          * if availability is not set to free!
          */
         if (Build.VERSION.SDK_INT >= 14) {
-            builder.withValue(Events.AVAILABILITY, Events.AVAILABILITY_FREE);
+            values.put(Events.AVAILABILITY, Events.AVAILABILITY_FREE);
         }
 
         // add button to open contact
-        if (Build.VERSION.SDK_INT >= 16 && lookupKey != null) {
-            builder.withValue(Events.CUSTOM_APP_PACKAGE, context.getPackageName());
-            Uri contactLookupUri = Uri.withAppendedPath(
-                    ContactsContract.Contacts.CONTENT_LOOKUP_URI, lookupKey);
-            builder.withValue(Events.CUSTOM_APP_URI, contactLookupUri.toString());
+        if (customAppUri != null) {
+            values.put(Events.CUSTOM_APP_PACKAGE, context.getPackageName());
+            values.put(Events.CUSTOM_APP_URI, customAppUri);
         }
 
-        return builder.build();
+        // keys and reminder signature used to reconcile this event on the next sync
+        values.put(Events._SYNC_ID, eventKey);
+        values.put(Events.SYNC_DATA1, reminderSignature);
+        values.put(Events.SYNC_DATA2, contactKey);
+
+        return values;
     }
 
     /**
-     * Try to parse input with SimpleDateFormat
-     *
-     * @param format      SimpleDateFormat
-     * @param setYear1700 When true the age will be not displayed in brackets
-     * @return Date object if successful, otherwise null
+     * Hashes the values of an event that are compared to check if it is up to date, stored in
+     * EventMappings. Includes the calendar, so events are moved if their account calendar changes.
      */
-    private static Date parseStringWithSimpleDateFormat(String input, String format,
-                                                        boolean setYear1700) {
-        Log.d(Constants.TAG, "Trying to parse Event Date String " + input + " with " + format);
-        SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
-        dateFormat.setTimeZone(TimeZone.getDefault());
-        try {
-            Date parsedDate = dateFormat.parse(input);
-
-            /*
-             * Because no year is defined in address book, set year to 1700
-             * 
-             * When year < 1800, the age will be not displayed in brackets
-             */
-            if (setYear1700) {
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(parsedDate);
-                cal.set(Calendar.YEAR, 1700);
-                parsedDate = cal.getTime();
-            }
+    static long hashEvent(long calendarId, String title, long dtstart, String customAppUri) {
+        return hash(calendarId + "\u0000" + title + '\u0000' + dtstart + '\u0000'
+                + customAppUri);
+    }
 
-            return parsedDate;
-        } catch (ParseException e) {
-            Log.d(Constants.TAG, "Parsing failed!");
-            return null;
+    /**
+     * 64 bit FNV-1a hash of a string
+     */
+    static long hash(String input) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < input.length(); i++) {
+            hash ^= input.charAt(i);
+            hash *= 0x100000001b3L;
         }
+        return hash;
     }
 
     /**
-     * The date format in the contact events is not standardized! This method will try to parse it
-     * trying different date formats.
-     * <p/>
-     * See also: http://dmfs.org/carddav/?date_format
-     *
-     * @return eventDate as Date object
+     * Get values of the EventMappings entry of an event, without its ids
      */
-    private static Date parseEventDateString(Context context, String eventDateString) {
-        if (eventDateString != null) {
-            Date eventDate;
-
-            // yyyy-MM-dd, Most used format!
-            eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyy-MM-dd", false);
-
-            // --MM-dd, Most used format without year!
-            if (eventDate == null) {
-                eventDate = parseStringWithSimpleDateFormat(eventDateString, "--MM-dd", true);
-            }
+    private static ContentValues getMappingValues(ContentValues values, long hash,
+                                                  String reminderIds) {
+        ContentValues mappingValues = new ContentValues();
+        mappingValues.put(BirthdayAdapterContract.EventMappings.CONTACT_KEY,
+                values.getAsString(Events.SYNC_DATA2));
+        mappingValues.put(BirthdayAdapterContract.EventMappings.EVENT_KEY,
+                values.getAsString(Events._SYNC_ID));
+        mappingValues.put(BirthdayAdapterContract.EventMappings.HASH, hash);
+        mappingValues.put(BirthdayAdapterContract.EventMappings.REMINDER_SIGNATURE,
+                values.getAsString(Events.SYNC_DATA1));
+        mappingValues.put(BirthdayAdapterContract.EventMappings.REMINDER_IDS, reminderIds);
+        return mappingValues;
+    }
 
-            // yyyyMMdd, HTC Desire
-            if (eventDate == null) {
-                if (eventDateString.length() == 8) {
-                    eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyyMMdd", false);
+    /**
+     * Adds ContentProviderOperations to insert reminders for an event. The event is either
+     * referenced by its id or, if it is inserted in the same batch, by its backRef.
+     *
+     * @return number of added operations
+     */
+    private static int addReminderOperations(CalendarBatch batch,
+                                              int[] reminderMinutes, long eventId, int backRef) {
+        Uri remindersUri = getBirthdayAdapterUri(Reminders.CONTENT_URI);
+        int count = 0;
+        for (int i = 0; i < 3; i++) {
+            if (reminderMinutes[i] != Constants.DISABLED_REMINDER) {
+                ContentValues values = new ContentValues();
+                values.put(Reminders.MINUTES, reminderMinutes[i]);
+                values.put(Reminders.METHOD, Reminders.METHOD_ALERT);
+
+                if (eventId != -1) {
+                    values.put(Reminders.EVENT_ID, eventId);
+                    batch.add(ContentProviderOperation.newInsert(remindersUri)
+                            .withValues(values).build(), values);
+                } else {
+                    /*
+                     * add reminder to last added event identified by backRef
+                     *
+                     * see http://stackoverflow.com/questions/4655291/semantics-of-
+                     * withvaluebackreference
+                     */
+                    batch.addWithBackReference(remindersUri, values, Reminders.EVENT_ID, backRef);
                 }
+                count++;
             }
+        }
+        return count;
+    }
 
-            // Unix timestamp, Some Motorola devices
-            if (eventDate == null) {
-                Log.d(Constants.TAG, "Trying to parse Event Date String " + eventDateString
-                        + " as a unix timestamp!");
-                try {
-                    eventDate = new Date(Long.parseLong(eventDateString));
-                } catch (NumberFormatException e) {
-                    Log.d(Constants.TAG, "Parsing failed!");
-                }
-            }
+    /**
+     * Adds the ContentProviderOperations needed to bring the generated event into the calendar:
+     * Nothing if the existing event is up to date, an update if it differs, or an insert if no
+     * event exists for this key.
+     */
+    private static void addEventOperations(CalendarBatch batch,
+                                           EventGenerator.GeneratedEvent event,
+                                           int[] reminderMinutes, String reminderSignature) {
+        ContentValues values = event.values;
+        ExistingEventReader.ExistingEvent existingEvent = event.existingEvent;
+        if (existingEvent == null) {
+            int backRef = batch.size();
+            batch.add(ContentProviderOperation
+                    .newInsert(getBirthdayAdapterUri(Events.CONTENT_URI))
+                    .withValues(values).build(), values);
+            int reminderIndex = batch.size();
+            int reminderCount = addReminderOperations(batch, reminderMinutes, -1, backRef);
+            batch.addMapping(getMappingValues(values, event.hash, null), -1, backRef, reminderIndex,
+                    reminderCount);
+            return;
+        }
 
-            // dd.MM.yyyy
-            if (eventDate == null) {
-                eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd.MM.yyyy", false);
-            }
+        // the existing event already has the values, i.e., no update is needed
+        boolean eventUpToDate = existingEvent.hash == event.hash;
+        boolean remindersUpToDate = TextUtils.equals(existingEvent.reminders, reminderSignature);
+        if (eventUpToDate && remindersUpToDate) {
+            return;
+        }
 
-            // yyyy.MM.dd
-            if (eventDate == null) {
-                eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyy.MM.dd", false);
-            }
+        if (!eventUpToDate) {
+            Uri eventUri = ContentUris.withAppendedId(getBirthdayAdapterUri(Events.CONTENT_URI),
+                    existingEvent.id);
+            batch.add(ContentProviderOperation.newUpdate(eventUri).withValues(values).build(),
+                    values);
+        }
 
-            /**
-             * Prefer dd/MM/yyyy over MM/dd/yyyy ?
-             */
-            if (PreferencesHelper.getPreferddSlashMM(context)) {
-                // dd/MM/yyyy
-                if (eventDate == null) {
-                    eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd/MM/yyyy",
-                            false);
-                }
+        if (remindersUpToDate) {
+            batch.addMapping(getMappingValues(values, event.hash, existingEvent.reminderIds),
+                    existingEvent.id, -1, -1, -1);
+            return;
+        }
 
-                // dd/MM
-                if (eventDate == null) {
-                    eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd/MM", true);
-                }
-            } else {
-                // MM/dd/yyyy, Used by Facebook
-                if (eventDate == null) {
-                    eventDate = parseStringWithSimpleDateFormat(eventDateString, "MM/dd/yyyy",
-                            false);
-                }
+        if (eventUpToDate) {
+            // only the reminder signature of the event changes
+            Uri eventUri = ContentUris.withAppendedId(getBirthdayAdapterUri(Events.CONTENT_URI),
+                    existingEvent.id);
+            batch.add(ContentProviderOperation.newUpdate(eventUri)
+                    .withValue(Events.SYNC_DATA1, reminderSignature).build());
+        }
 
-                //MM/dd, Used by Facebook
-                if (eventDate == null) {
-                    eventDate = parseStringWithSimpleDateFormat(eventDateString, "MM/dd", true);
+        if (existingEvent.reminderIds != null) {
+            // delete the known reminders by their id
+            for (String reminderId : TextUtils.split(existingEvent.reminderIds, ",")) {
+                if (!reminderId.isEmpty()) {
+                    batch.add(ContentProviderOperation.newDelete(Uri.withAppendedPath(
+                            getBirthdayAdapterUri(Reminders.CONTENT_URI), reminderId)).build());
                 }
             }
-
-            /* Return */
-            if (eventDate != null) {
-                Log.d(Constants.TAG, "Event Date String " + eventDateString + " was parsed as "
-                        + eventDate.toString());
-
-                return eventDate;
-            } else {
-                Log.e(Constants.TAG, "Event Date String " + eventDateString
-                        + " could NOT be parsed! returning null!");
-
-                return null;
-            }
         } else {
-            Log.d(Constants.TAG, "Event Date String is null!");
-
-            return null;
+            batch.add(ContentProviderOperation
+                    .newDelete(getBirthdayAdapterUri(Reminders.CONTENT_URI))
+                    .withSelection(Reminders.EVENT_ID + " = ?",
+                            new String[]{String.valueOf(existingEvent.id)}).build());
         }
+        int reminderIndex = batch.size();
+        int reminderCount = addReminderOperations(batch, reminderMinutes, existingEvent.id, -1);
+        batch.addMapping(getMappingValues(values, event.hash, null), existingEvent.id, -1,
+                reminderIndex, reminderCount);
     }
 
     /**
-     * Get Cursor of contacts with events, but only those from Accounts not in our blacklist!
-     * <p/>
-     * This is really complicated, because we can't query SQLite directly. We need to use the provided Content Provider
-     * and query several times for different tables.
-     *
-     * @return Cursor over all contacts with events, where accounts are not blacklisted
+     * Adds the ids of existing events, which have not been generated again, to obsoleteEventIds
      */
-    private static Cursor getContactsEvents(Context context, ContentResolver contentResolver) {
-        // 0. get blacklist of Account names from own provider
-        HashSet<Account> blacklist = ProviderHelper.getAccountBlacklist(context);
+    private static void addObsoleteEvents(
+            HashMap<String, ExistingEventReader.ExistingEvent> existingEvents,
+            ArrayList<Long> obsoleteEventIds) {
+        for (ExistingEventReader.ExistingEvent existingEvent : existingEvents.values()) {
+            obsoleteEventIds.add(existingEvent.id);
+        }
+    }
 
-        // HashSet of already added events using generated identifiers to check for duplicates before adding
-        HashSet<String> addedEventsIdentifiers = new HashSet<>();
+    /**
+     * Deletes the given events and clears eventIds. Their reminders are removed by the calendar
+     * provider.
+     */
+    private static void deleteEvents(CalendarBatch batch, ArrayList<Long> eventIds) {
+        for (long eventId : eventIds) {
+            batch.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    getBirthdayAdapterUri(Events.CONTENT_URI), eventId)).build());
+            batch.addMappingOperation(ContentProviderOperation.newDelete(
+                    BirthdayAdapterContract.EventMappings.buildUri(Long.toString(eventId))).build());
+            batch.applyIfFull();
+        }
+        eventIds.clear();
+    }
 
-        /*
-         * 1. Get all raw contacts with their corresponding Account name and type (only raw contacts get get Account
-         * affiliation
-         */
-        Uri rawContactsUri = ContactsContract.RawContacts.CONTENT_URI;
-        String[] rawContactsProjection = new String[]{
-                ContactsContract.RawContacts._ID,
-                ContactsContract.RawContacts.CONTACT_ID,
-                ContactsContract.RawContacts.DISPLAY_NAME_PRIMARY,
-                ContactsContract.RawContacts.ACCOUNT_NAME,
-                ContactsContract.RawContacts.ACCOUNT_TYPE,};
-        Cursor rawContacts = contentResolver.query(rawContactsUri, rawContactsProjection, null, null, null);
+    /**
+     * Deletes all events of the given deleted contacts, without reading back the events. Their
+     * reminders are removed by the calendar provider.
+     */
+    private static void deleteContactEvents(CalendarBatch batch, AccountCalendars calendars,
+                                            Collection<Long> contactIds) {
+        String calendarIds = TextUtils.join(",", calendars.getCalendarIds());
+        ArrayList<Long> chunk = new ArrayList<>();
+        for (long contactId : contactIds) {
+            chunk.add(contactId);
+            if (chunk.size() >= MAX_CONTACTS_PER_QUERY) {
+                addDeleteContactEventsOperation(batch, calendarIds, chunk);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            addDeleteContactEventsOperation(batch, calendarIds, chunk);
+        }
+    }
 
-        /*
-         * 2. Go over all raw contacts and check if the Account is allowed.
-         * If Account is allowed, get display name and lookup key and all events for this contact.
-         * Build a new MatrixCursor out of this data that can be used.
-         */
-        String[] columns = new String[]{
-                BaseColumns._ID,
-                ContactsContract.Data.DISPLAY_NAME,
-                ContactsContract.Data.LOOKUP_KEY,
-                ContactsContract.CommonDataKinds.Event.START_DATE,
-                ContactsContract.CommonDataKinds.Event.TYPE,
-                ContactsContract.CommonDataKinds.Event.LABEL
-        };
-        MatrixCursor mc = new MatrixCursor(columns);
-        int mcIndex = 0;
-        try {
-            while (rawContacts != null && rawContacts.moveToNext()) {
-                long rawId = rawContacts.getLong(rawContacts.getColumnIndex(ContactsContract.RawContacts._ID));
-                String accType = rawContacts.getString(rawContacts.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_TYPE));
-                String accName = rawContacts.getString(rawContacts.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_NAME));
-
-                /*
-                 * 2a. Check if Account is allowed (not blacklisted)
-                 */
-                boolean addEvent = false;
-                if (TextUtils.isEmpty(accType) || TextUtils.isEmpty(accName)) {
-                    // Workaround: Simply add events without proper Account
-                    addEvent = true;
-                } else {
-                    Account acc = new Account(accName, accType);
+    private static void addDeleteContactEventsOperation(CalendarBatch batch, String calendarIds,
+                                                        Collection<Long> contactIds) {
+        batch.add(ContentProviderOperation
+                .newDelete(getBirthdayAdapterUri(Events.CONTENT_URI))
+                .withSelection(Events.CALENDAR_ID + " IN (" + calendarIds + ") AND "
+                                + buildContactKeySelection(Events.SYNC_DATA2, contactIds),
+                        null).build());
+        batch.addMappingOperation(ContentProviderOperation
+                .newDelete(BirthdayAdapterContract.EventMappings.CONTENT_URI)
+                .withSelection(buildContactKeySelection(
+                        BirthdayAdapterContract.EventMappings.CONTACT_KEY, contactIds), null)
+                .build());
+        batch.applyIfFull();
+    }
 
-                    if (!blacklist.contains(acc)) {
-                        addEvent = true;
-                    }
-                }
+    private static void performSync(Context context, Account account, Bundle extras,
+                                    String authority, ContentProviderClient provider, SyncResult syncResult)
+            throws OperationCanceledException {
+        // periodic syncs only process changed contacts, manual syncs process all contacts
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        performSync(context, provider, manual, manual);
+    }
 
-                if (addEvent) {
-                    String displayName = null;
-                    String lookupKey = null;
-                    String startDate;
-                    int type;
-                    String label;
+    /**
+     * Syncs the events of all contacts. Used when preferences or the account blacklist changed.
+     */
+    public static void performSync(Context context) {
+        performSync(context, true);
+    }
 
-                    /*
-                     * 2b. Get display name and lookup key from normal contact table
-                     */
-                    String[] displayProjection = new String[]{
-                            ContactsContract.Data.RAW_CONTACT_ID,
-                            ContactsContract.Data.DISPLAY_NAME,
-                            ContactsContract.Data.LOOKUP_KEY,
-                    };
-                    String displayWhere = ContactsContract.Data.RAW_CONTACT_ID + "= ?";
-                    String[] displaySelectionArgs = new String[]{
-                            String.valueOf(rawId)
-                    };
-                    Cursor displayCursor = contentResolver.query(ContactsContract.Data.CONTENT_URI, displayProjection,
-                            displayWhere, displaySelectionArgs, null);
-                    try {
-                        if (displayCursor != null && displayCursor.moveToFirst()) {
-                            displayName = displayCursor.getString(displayCursor.getColumnIndex(ContactsContract.Data.DISPLAY_NAME));
-                            lookupKey = displayCursor.getString(displayCursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY));
-                        }
-                    } finally {
-                        if (displayCursor != null && !displayCursor.isClosed())
-                            displayCursor.close();
-                    }
+    /**
+     * Syncs the birthday calendar outside of the sync adapter
+     *
+     * @param complete sync the events of all contacts, otherwise only changes are synced, e.g.,
+     *                 changed contacts or reminders
+     */
+    public static void performSync(Context context, boolean complete) {
+        ContentProviderClient client = acquireCalendarClient(context);
+        if (client == null) {
+            Log.e(Constants.TAG, "Unable to get calendar provider!");
+            return;
+        }
 
-                    /*
-                     * 2c. Get all events for this raw contact.
-                     * We don't get this information for the (merged) contact table, but from the raw contact.
-                     * If we would query this infos from the contact table we would also get events that should have been filtered!
-                     */
-                    Uri thisRawContactUri = ContentUris.withAppendedId(ContactsContract.RawContacts.CONTENT_URI, rawId);
-                    Uri entityUri = Uri.withAppendedPath(thisRawContactUri, ContactsContract.RawContacts.Entity.CONTENT_DIRECTORY);
-                    String[] eventsProjection = new String[]{
-                            ContactsContract.RawContacts._ID,
-                            ContactsContract.RawContacts.Entity.DATA_ID,
-                            ContactsContract.CommonDataKinds.Event.START_DATE,
-                            ContactsContract.CommonDataKinds.Event.TYPE,
-                            ContactsContract.CommonDataKinds.Event.LABEL
-                    };
-                    String eventsWhere = ContactsContract.RawContacts.Entity.MIMETYPE + "= ? AND "
-                            + ContactsContract.RawContacts.Entity.DATA_ID + " IS NOT NULL";
-                    String[] eventsSelectionArgs = new String[]{
-                            ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE
-                    };
-                    Cursor eventsCursor = contentResolver.query(entityUri, eventsProjection, eventsWhere,
-                            eventsSelectionArgs, null);
-                    try {
-                        while (eventsCursor != null && eventsCursor.moveToNext()) {
-                            startDate = eventsCursor.getString(eventsCursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.START_DATE));
-                            type = eventsCursor.getInt(eventsCursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.TYPE));
-                            label = eventsCursor.getString(eventsCursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.LABEL));
-
-                            /*
-                             * 2d. Add this information to our MatrixCursor if not already added previously.
-                             *
-                             * If two SyncAdapter Accounts have the same contact with duplicated events, the event will already be in
-                             * the HashSet addedEventsIdentifiers.
-                             *
-                             * eventIdentifier does not include startDate, because the String formats of startDate differ between accounts.
-                             */
-                            String eventIdentifier = lookupKey + type + label;
-                            if (addedEventsIdentifiers.contains(eventIdentifier)) {
-                                Log.d(Constants.TAG, "Event was NOT added, duplicate! Identifier: " + eventIdentifier);
-                            } else {
-                                Log.d(Constants.TAG, "Event was added! Identifier " + eventIdentifier);
-                                addedEventsIdentifiers.add(eventIdentifier);
-
-                                mc.newRow().add(mcIndex).add(displayName).add(lookupKey).add(startDate).add(type).add(label);
-                                mcIndex++;
-                            }
-                        }
-                    } finally {
-                        if (eventsCursor != null && !eventsCursor.isClosed())
-                            eventsCursor.close();
-                    }
-                }
-            }
+        try {
+            // requested because preferences changed, must not be skipped
+            performSync(context, client, complete, true);
         } finally {
-            if (rawContacts != null && !rawContacts.isClosed())
-                rawContacts.close();
+            client.release();
         }
-
-        if (BuildConfig.DEBUG)
-            DatabaseUtils.dumpCursor(mc);
-
-        return mc;
     }
 
     /**
-     * Generates title for events
+     * Syncs the birthday calendar with the contacts, if no other sync is running.
+     *
+     * @param calendarClient client of the calendar provider, used for all calls to the calendar
+     * @param complete       sync the events of all contacts. Otherwise only the events of
+     *                       contacts changed since the last successful sync are synced, if the year
+     *                       and the calendar did not change since the last complete sync.
+     * @param wait           wait for a running sync, e.g., because it may have been started with
+     *                       outdated preferences. Otherwise this sync is skipped, the running sync
+     *                       or the next one syncs the changed contacts.
      */
-    private static String generateTitle(Context context, int eventType, Cursor cursor,
-                                        int eventCustomLabelColumn, boolean includeAge, String displayName, int age) {
-        String title = null;
-        if (displayName != null) {
-            switch (eventType) {
-                case ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM:
-                    String eventCustomLabel = cursor.getString(eventCustomLabelColumn);
-
-                    if (eventCustomLabel != null) {
-                        title = String.format(PreferencesHelper.getLabel(context,
-                                ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM, includeAge),
-                                displayName, eventCustomLabel, age);
-                    } else {
-                        title = String.format(PreferencesHelper.getLabel(context,
-                                ContactsContract.CommonDataKinds.Event.TYPE_OTHER, includeAge),
-                                displayName, age);
-                    }
-                    break;
-                case ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY:
-                    title = String.format(PreferencesHelper.getLabel(context,
-                            ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY, includeAge),
-                            displayName, age);
-                    break;
-                case ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY:
-                    title = String.format(PreferencesHelper.getLabel(context,
-                            ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY, includeAge),
-                            displayName, age);
-                    break;
-                default:
-                    // also ContactsContract.CommonDataKinds.Event.TYPE_OTHER
-                    title = String.format(PreferencesHelper.getLabel(context,
-                            ContactsContract.CommonDataKinds.Event.TYPE_OTHER, includeAge),
-                            displayName, age);
-                    break;
+    private static void performSync(Context context, ContentProviderClient calendarClient,
+                                    boolean complete, boolean wait) {
+        SyncLock lock = SyncLock.tryAcquire(context);
+        if (lock == null && wait) {
+            Log.d(Constants.TAG, "Waiting for running sync...");
+            lock = SyncLock.acquire(context);
+        }
+        if (lock == null) {
+            if (Thread.currentThread().isInterrupted()) {
+                Log.d(Constants.TAG, "Sync has been cancelled!");
+            } else {
+                Log.d(Constants.TAG, "Another sync is running, skipping this sync!");
             }
+            return;
         }
 
-        return title;
-    }
-
-    private static void cleanTables(ContentResolver contentResolver, long calendarId) {
-
-        // empty table
-        // with additional selection of calendar id, necessary on Android < 4 to remove events only
-        // from birthday calendar
-        int delEventsRows = contentResolver.delete(getBirthdayAdapterUri(Events.CONTENT_URI),
-                Events.CALENDAR_ID + " = ?", new String[]{String.valueOf(calendarId)});
-        Log.i(Constants.TAG, "Events of birthday calendar is now empty, deleted " + delEventsRows
-                + " rows!");
-        Log.i(Constants.TAG, "Reminders of birthday calendar is now empty!");
+        try {
+            performLockedSync(context, calendarClient, complete);
+        } finally {
+            lock.release();
+        }
     }
 
-
     /**
-     * Delete all reminders of birthday adapter by going through all events and delete corresponding
-     * reminders. This is needed as ContentResolver can not join directly.
-     * <p>
-     * TODO: not used currently
+     * Syncs the birthday calendar with the contacts, while holding the SyncLock
+     *
+     * @see #performSync(Context, ContentProviderClient, boolean, boolean)
      */
-    private static void deleteAllReminders(Context context) {
-        Log.d(Constants.TAG, "Going through all events and deleting all reminders...");
+    private static void performLockedSync(Context context, ContentProviderClient calendarClient,
+                                          boolean complete) {
+        Log.d(Constants.TAG, "Starting sync...");
+        long startTime = SystemClock.elapsedRealtime();
 
         ContentResolver contentResolver = context.getContentResolver();
 
-        // get cursor for all events
-        Cursor eventsCursor = contentResolver.query(getBirthdayAdapterUri(Events.CONTENT_URI),
-                new String[]{Events._ID}, Events.CALENDAR_ID + "= ?",
-                new String[]{String.valueOf(getCalendar(context))}, null);
-        int eventIdColumn = eventsCursor.getColumnIndex(Events._ID);
-
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        if (contentResolver == null) {
+            Log.e(Constants.TAG, "Unable to get content resolver!");
+            return;
+        }
 
-        Uri remindersUri = getBirthdayAdapterUri(Reminders.CONTENT_URI);
+        long calendarId;
+        try {
+            calendarId = getCalendar(context, calendarClient);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Unable to query calendar", e);
+            return;
+        }
+        if (calendarId == -1) {
+            Log.e("CalendarSyncAdapter", "Unable to create calendar");
+            return;
+        }
 
-        ContentProviderOperation.Builder builder = null;
+        // get current year
+        Calendar currCal = Calendar.getInstance();
+        int currYear = currCal.get(Calendar.YEAR);
+
+        // the same preferences are used for the whole sync
+        SyncConfig config = SyncConfig.get(context);
+
+        String configFingerprint = SyncFingerprint.computeConfig(config, calendarId, currYear);
+        String contactsFingerprint = SyncFingerprint.computeContacts(contentResolver);
+        boolean remindersChanged = !config.getReminderSignature().equals(
+                ProviderHelper.getSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_SYNCED_REMINDERS));
+        String titlesFingerprint = SyncFingerprint.computeTitles(config);
+        boolean titlesChanged = !titlesFingerprint.equals(ProviderHelper.getSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_TITLES_FINGERPRINT));
+        HashSet<Account> blacklist = ProviderHelper.getAccountBlacklist(context);
+        String blacklistState = SyncFingerprint.computeBlacklist(blacklist);
+        String syncedBlacklistState = ProviderHelper.getSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_SYNCED_BLACKLIST);
+        boolean blacklistChanged = !blacklistState.equals(syncedBlacklistState);
+
+        // with a calendar per account, the calendars of blacklisted accounts are hidden here
+        AccountCalendars calendars = AccountCalendars.load(context, calendarClient, config,
+                calendarId, blacklist);
+        if (calendars == null) {
+            return;
+        }
+        HashSet<Account> missingAccounts = calendars.getMissingAccounts();
+
+        int decision = SyncFingerprint.decide(complete, configFingerprint,
+                ProviderHelper.getSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_CONFIG_FINGERPRINT),
+                syncedBlacklistState, contactsFingerprint,
+                ProviderHelper.getSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_CONTACTS_FINGERPRINT),
+                remindersChanged || titlesChanged || blacklistChanged
+                        || !missingAccounts.isEmpty());
+        if (decision == SyncFingerprint.SYNC_NOTHING) {
+            Log.d(Constants.TAG, "Nothing changed since last sync!");
+            return;
+        }
+        complete = decision == SyncFingerprint.SYNC_COMPLETE;
+        ProviderHelper.removeSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_CONTACTS_FINGERPRINT);
+
+        // existing events are read from their mappings, rebuild them if they may be outdated
+        if ((ProviderHelper.getSyncStateLong(context,
+                BirthdayAdapterContract.SyncState.KEY_MAPPED_CALENDAR_ID, -1) != calendarId
+                || !missingAccounts.isEmpty())
+                && !EventMappingTable.rebuild(context, contentResolver, calendarClient,
+                calendars)) {
+            Log.e(Constants.TAG, "Unable to read events from calendar, aborting sync!");
+            return;
+        }
 
-        // go through all events
-        try {
-            while (eventsCursor.moveToNext()) {
-                long eventId = eventsCursor.getLong(eventIdColumn);
+        // the range of years changes every year and a recreated calendar is empty
+        if (ProviderHelper.getSyncStateLong(context,
+                BirthdayAdapterContract.SyncState.KEY_SYNCED_YEAR, -1) != currYear
+                || ProviderHelper.getSyncStateLong(context,
+                BirthdayAdapterContract.SyncState.KEY_SYNCED_CALENDAR_ID, -1) != calendarId) {
+            complete = true;
+        }
 
-                Log.d(Constants.TAG, "Delete reminders for event id: " + eventId);
+        ContactChangeTracker changes = ContactChangeTracker.query(context, contentResolver);
+        if (changes == null) {
+            return;
+        }
 
-                // get all reminders for this specific event
-                Cursor remindersCursor = contentResolver.query(remindersUri, new String[]{
-                                Reminders._ID, Reminders.MINUTES}, Reminders.EVENT_ID + "= ?",
-                        new String[]{String.valueOf(eventId)}, null);
-                int remindersIdColumn = remindersCursor.getColumnIndex(Reminders._ID);
+        TreeSet<Long> changedContactIds = new TreeSet<>(changes.getChangedContactIds());
+        if (!complete && (blacklistChanged || !missingAccounts.isEmpty())) {
+            /*
+             * Only the contacts with events from toggled accounts gain or lose events, or with a
+             * calendar per account, only their duplicated events change their calendar. The
+             * events of deleted account calendars are inserted again. The mirror contains the
+             * events of all accounts.
+             */
+            HashSet<Account> resyncedAccounts = new HashSet<>(missingAccounts);
+            if (blacklistChanged) {
+                HashSet<Account> toggledAccounts =
+                        SyncFingerprint.parseBlacklist(syncedBlacklistState);
+                for (Account account : blacklist) {
+                    if (!toggledAccounts.remove(account)) {
+                        toggledAccounts.add(account);
+                    }
+                }
+                resyncedAccounts.addAll(toggledAccounts);
+            }
+            TreeSet<Long> resyncedContactIds =
+                    ContactEventMirror.queryContactIds(contentResolver, resyncedAccounts);
+            if (resyncedContactIds == null) {
+                complete = true;
+            } else {
+                Log.d(Constants.TAG, "Blacklist or calendars of " + resyncedAccounts.size()
+                        + " accounts changed, syncing " + resyncedContactIds.size()
+                        + " contacts again...");
+                changedContactIds.addAll(resyncedContactIds);
+            }
+        }
 
-                /* Delete reminders for this event */
-                try {
-                    while (remindersCursor.moveToNext()) {
-                        long currentReminderId = remindersCursor.getLong(remindersIdColumn);
-                        Uri currentReminderUri = ContentUris.withAppendedId(remindersUri,
-                                currentReminderId);
+        if (changedContactIds.size() > MAX_CHANGED_CONTACTS) {
+            complete = true;
+        }
 
-                        builder = ContentProviderOperation.newDelete(currentReminderUri);
+        // a complete sync updates the reminders together with the events
+        if (!complete && remindersChanged) {
+            if (!ReminderUpdater.update(context, contentResolver, calendarClient, config)) {
+                Log.e(Constants.TAG, "Updating reminders failed, aborting sync!");
+                return;
+            }
+            ProviderHelper.setSyncState(context,
+                    BirthdayAdapterContract.SyncState.KEY_SYNCED_REMINDERS,
+                    config.getReminderSignature());
+        }
 
-                        // add operation to list, later executed
-                        if (builder != null) {
-                            operationList.add(builder.build());
-                        }
+        // copy the events of changed contacts into the local mirror, which is read by the sync
+        boolean mirrored = ContactEventMirror.reparseIfNeeded(context, contentResolver, config);
+        if (mirrored) {
+            EventDateCache dateCache = new EventDateCache(context, contentResolver, config, true);
+            if (changes.getChangedContactIds().size() > MAX_CHANGED_CONTACTS) {
+                mirrored = ContactEventMirror.refresh(contentResolver, dateCache, null);
+            } else {
+                TreeSet<Long> refreshedContactIds = new TreeSet<>(changes.getChangedContactIds());
+                refreshedContactIds.addAll(changes.getDeletedContactIds());
+
+                ArrayList<Long> chunk = new ArrayList<>();
+                for (long contactId : refreshedContactIds) {
+                    chunk.add(contactId);
+                    if (chunk.size() >= MAX_CONTACTS_PER_QUERY) {
+                        mirrored &= ContactEventMirror.refresh(contentResolver, dateCache, chunk);
+                        chunk.clear();
                     }
-                } finally {
-                    remindersCursor.close();
                 }
+                mirrored &= ContactEventMirror.refresh(contentResolver, dateCache, chunk);
             }
-        } finally {
-            eventsCursor.close();
         }
-
-        try {
-            contentResolver.applyBatch(CalendarContract.AUTHORITY, operationList);
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Error: " + e.getMessage());
-            e.printStackTrace();
+        if (!mirrored) {
+            Log.e(Constants.TAG, "Unable to copy events from contacts, aborting sync!");
+            return;
         }
-    }
 
-    private static void performSync(Context context, Account account, Bundle extras,
-                                    String authority, ContentProviderClient provider, SyncResult syncResult)
-            throws OperationCanceledException {
-        performSync(context);
-    }
+        boolean success;
+        if (complete) {
+            // if this sync is interrupted, the next one is complete, too
+            ProviderHelper.removeSyncState(context,
+                    BirthdayAdapterContract.SyncState.KEY_SYNCED_YEAR);
 
-    public static void performSync(Context context) {
-        Log.d(Constants.TAG, "Starting sync...");
+            Log.d(Constants.TAG, "Syncing all contacts...");
+            success = syncContacts(context, contentResolver, calendarClient, config, calendars,
+                    blacklist, currYear, null, false);
+        } else {
+            success = true;
+
+            TreeSet<Long> deletedContactIds = changes.getDeletedContactIds();
+            if (!deletedContactIds.isEmpty()) {
+                Log.d(Constants.TAG, "Deleting events of " + deletedContactIds.size()
+                        + " deleted contacts...");
+                CalendarBatch batch = new CalendarBatch(context, contentResolver,
+                        calendarClient);
+                deleteContactEvents(batch, calendars, deletedContactIds);
+                batch.apply();
+                success = !batch.hasFailed();
+            }
 
-        ContentResolver contentResolver = context.getContentResolver();
+            Log.d(Constants.TAG, "Syncing " + changedContactIds.size() + " changed contacts...");
 
-        if (contentResolver == null) {
-            Log.e(Constants.TAG, "Unable to get content resolver!");
-            return;
+            ArrayList<Long> chunk = new ArrayList<>();
+            for (long contactId : changedContactIds) {
+                chunk.add(contactId);
+                if (chunk.size() >= MAX_CONTACTS_PER_QUERY) {
+                    success &= syncContacts(context, contentResolver, calendarClient, config,
+                            calendars, blacklist, currYear, chunk, false);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                success &= syncContacts(context, contentResolver, calendarClient, config,
+                        calendars, blacklist, currYear, chunk, false);
+            }
+
+            // after the changed contacts, the events of all other contacts only differ in titles
+            if (success && titlesChanged) {
+                Log.d(Constants.TAG, "Updating titles of all contacts...");
+                success = syncContacts(context, contentResolver, calendarClient, config,
+                        calendars, blacklist, currYear, null, true);
+            }
         }
 
-        long calendarId = getCalendar(context);
-        if (calendarId == -1) {
-            Log.e("CalendarSyncAdapter", "Unable to create calendar");
-            return;
+        if (success) {
+            changes.commit(context);
+            if (complete) {
+                ProviderHelper.setSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_SYNCED_CALENDAR_ID,
+                        String.valueOf(calendarId));
+                ProviderHelper.setSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_SYNCED_YEAR, String.valueOf(currYear));
+                ProviderHelper.setSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_CONFIG_FINGERPRINT, configFingerprint);
+                ProviderHelper.setSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_SYNCED_REMINDERS,
+                        config.getReminderSignature());
+
+                // all events have been moved into the calendars of the current preference
+                calendars.deleteUnused();
+            }
+            calendars.commit();
+            ProviderHelper.setSyncState(context,
+                    BirthdayAdapterContract.SyncState.KEY_TITLES_FINGERPRINT, titlesFingerprint);
+            ProviderHelper.setSyncState(context,
+                    BirthdayAdapterContract.SyncState.KEY_SYNCED_BLACKLIST, blacklistState);
+            if (contactsFingerprint != null) {
+                ProviderHelper.setSyncState(context,
+                        BirthdayAdapterContract.SyncState.KEY_CONTACTS_FINGERPRINT,
+                        contactsFingerprint);
+            }
+        } else {
+            Log.e(Constants.TAG, "Sync failed, changes will be synced again on next sync!");
         }
+        Log.d(Constants.TAG, "Sync took " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+    }
 
-        // Sync flow:
-        // 1. Clear events table for this account completely
-        cleanTables(contentResolver, calendarId);
-        // 2. Get birthdays from contacts
-        // 3. Create events and reminders for each birthday
+    /**
+     * Reads the existing events of a chunk of contacts, generates their events and adds the
+     * operations to bring them into the calendar in the order of the contacts. Existing events not
+     * generated anymore are added to obsoleteEventIds and deleted with the next contact.
+     *
+     * @param titlesOnly only update the titles of existing events, see addTitleOperations()
+     * @return false if interrupted, i.e., the sync has been cancelled, or if the existing events
+     * could not be read or the events could not be generated
+     */
+    private static boolean addContactOperations(CalendarBatch batch, EventGenerator generator,
+                                                ExistingEventReader existingEventReader,
+                                                ArrayList<EventGenerator.Contact> contacts,
+                                                ArrayList<Long> obsoleteEventIds,
+                                                int[] reminderMinutes, String reminderSignature,
+                                                boolean titlesOnly) {
+        if (Thread.currentThread().isInterrupted()) {
+            Log.d(Constants.TAG, "Sync has been cancelled!");
+            return false;
+        }
+        if (!existingEventReader.readChunk(contacts)) {
+            Log.e(Constants.TAG, "Unable to get event mappings! Cursor returns null!");
+            return false;
+        }
+        if (!generator.generate(contacts)) {
+            return false;
+        }
 
-        int[] reminderMinutes = PreferencesHelper.getAllReminderMinutes(context);
+        for (EventGenerator.Contact contact : contacts) {
+            if (titlesOnly) {
+                for (EventGenerator.GeneratedEvent event : contact.generatedEvents) {
+                    addTitleOperations(batch, event);
+                    batch.applyIfFull();
+                }
+                continue;
+            }
 
-        // collection of birthdays that will later be added to the calendar
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+            obsoleteEventIds.addAll(contact.obsoleteEventIds);
+            deleteEvents(batch, obsoleteEventIds);
 
-        // iterate through all Contact Events
-        Cursor cursor = getContactsEvents(context, contentResolver);
+            for (EventGenerator.GeneratedEvent event : contact.generatedEvents) {
+                addEventOperations(batch, event, reminderMinutes, reminderSignature);
+                batch.applyIfFull();
+            }
 
-        if (cursor == null) {
-            Log.e(Constants.TAG, "Unable to get events from contacts! Cursor returns null!");
-            return;
+            // remaining events of this contact are not generated anymore
+            addObsoleteEvents(contact.existingEvents, obsoleteEventIds);
         }
+        return true;
+    }
 
-        try {
-            int eventDateColumn = cursor
-                    .getColumnIndex(ContactsContract.CommonDataKinds.Event.START_DATE);
-            int displayNameColumn = cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME);
-            int eventTypeColumn = cursor
-                    .getColumnIndex(ContactsContract.CommonDataKinds.Event.TYPE);
-            int eventCustomLabelColumn = cursor
-                    .getColumnIndex(ContactsContract.CommonDataKinds.Event.LABEL);
-            int eventLookupKeyColumn = cursor
-                    .getColumnIndex(ContactsContract.CommonDataKinds.Event.LOOKUP_KEY);
-
-            int backRef = 0;
-            // for every event...
-            while (cursor.moveToNext()) {
-                String eventDateString = cursor.getString(eventDateColumn);
-                String displayName = cursor.getString(displayNameColumn);
-                int eventType = cursor.getInt(eventTypeColumn);
-                String eventLookupKey = cursor.getString(eventLookupKeyColumn);
-
-                Date eventDate = parseEventDateString(context, eventDateString);
+    /**
+     * Adds the ContentProviderOperations to update only the title of the generated event, if it
+     * exists and differs. Used when only the titles changed, i.e., the other values of the
+     * existing events are up to date.
+     */
+    private static void addTitleOperations(CalendarBatch batch,
+                                           EventGenerator.GeneratedEvent event) {
+        ExistingEventReader.ExistingEvent existingEvent = event.existingEvent;
+        if (existingEvent == null || existingEvent.hash == event.hash) {
+            return;
+        }
 
-                // only proceed when parsing didn't fail
-                if (eventDate != null) {
+        Uri eventUri = ContentUris.withAppendedId(getBirthdayAdapterUri(Events.CONTENT_URI),
+                existingEvent.id);
+        ContentValues values = new ContentValues();
+        values.put(Events.TITLE, event.values.getAsString(Events.TITLE));
+        batch.add(ContentProviderOperation.newUpdate(eventUri).withValues(values).build(), values);
+
+        // the reminders stay the same
+        ContentValues mappingValues = getMappingValues(event.values, event.hash,
+                existingEvent.reminderIds);
+        mappingValues.put(BirthdayAdapterContract.EventMappings.REMINDER_SIGNATURE,
+                existingEvent.reminders);
+        batch.addMapping(mappingValues, existingEvent.id, -1, -1, -1);
+    }
 
-                    // get year from event
-                    Calendar eventCal = Calendar.getInstance();
-                    eventCal.setTime(eventDate);
-                    int eventYear = eventCal.get(Calendar.YEAR);
-                    Log.d(Constants.TAG, "Event Year: " + eventYear);
+    /**
+     * Syncs the events of the given contacts, streamed contact by contact:
+     * 1. Get birthdays from contacts, sorted by contact
+     * 2. Read back existing events of these contacts from their mappings, chunk by chunk
+     * 3. Insert or update events and reminders for each birthday, if they differ
+     * 4. Delete existing events of this contact, which are not generated anymore
+     * Only the current chunk of contacts and the batches of operations not yet applied are held
+     * in memory. The events of a chunk are generated in parallel, full batches are applied by a
+     * writer thread while the next contacts are read.
+     *
+     * @param calendars  calendars of the events, created on demand
+     * @param blacklist  account blacklist read at the start of the sync
+     * @param contactIds contacts to sync, null to sync all contacts
+     * @param titlesOnly only update the titles of existing events, all other values and the set
+     *                   of events are up to date
+     * @return false if the sync failed
+     */
+    private static boolean syncContacts(Context context, ContentResolver contentResolver,
+                                        ContentProviderClient calendarClient, SyncConfig config,
+                                        AccountCalendars calendars, HashSet<Account> blacklist,
+                                        int currYear, Collection<Long> contactIds,
+                                        boolean titlesOnly) {
+        int[] reminderMinutes = config.getReminderMinutes();
+        String reminderSignature = config.getReminderSignature();
 
-                    /*
-                     * If year < 1800 don't show brackets with age behind name.
-                     * 
-                     * When no year is defined parseEventDateString() sets it to 1700
-                     * 
-                     * Also iCloud for example sets year to 1604 if no year is defined in their user
-                     * interface
-                     */
-                    boolean hasYear = false;
-                    if (eventYear >= 1800) {
-                        hasYear = true;
-                    }
+        /*
+         * Insert events for the past 3 years and the next 5 years.
+         *
+         * Events are not inserted as recurring events to have different titles with
+         * birthday age in it.
+         */
+        EventYears eventYears = new EventYears(currYear - 3, currYear + 5);
+        EventGenerator generator = new EventGenerator(context, config, eventYears);
 
-                    // get current year
-                    Calendar currCal = Calendar.getInstance();
-                    int currYear = currCal.get(Calendar.YEAR);
+        // current batch of operations that will be applied to the calendar
+        CalendarBatch batch = new CalendarBatch(context, contentResolver, calendarClient);
+        ArrayList<Long> obsoleteEventIds = new ArrayList<>();
 
-                    /*
-                     * Insert events for the past 3 years and the next 5 years.
-                     * 
-                     * Events are not inserted as recurring events to have different titles with
-                     * birthday age in it.
-                     */
-                    int startYear = currYear - 3;
-                    int endYear = currYear + 5;
+        ContactEventReader contactEvents = ContactEventReader.query(contentResolver, blacklist,
+                calendars.isEnabled(), contactIds);
+        if (contactEvents == null) {
+            Log.e(Constants.TAG, "Unable to get events from contacts! Cursor returns null!");
+            return false;
+        }
 
-                    for (int iteratedYear = startYear; iteratedYear <= endYear; iteratedYear++) {
-                        Log.d(Constants.TAG, "iteratedYear: " + iteratedYear);
+        ExistingEventReader existingEventReader = new ExistingEventReader(contentResolver,
+                contactIds);
 
-                        // calculate age
-                        int age = iteratedYear - eventYear;
+        try {
+            ArrayList<EventGenerator.Contact> chunk = new ArrayList<>();
+            EventGenerator.Contact contact = null;
 
-                        // if birthday has year and age of this event >= 0, display age in title
-                        boolean includeAge = false;
-                        if (hasYear && age >= 0) {
-                            includeAge = true;
+            // for every event...
+            while (contactEvents.moveToNext()) {
+                if (contact == null || contactEvents.getContactId() != contact.id) {
+                    // next contact: generate the events of the chunk if it is full
+                    if (chunk.size() >= CONTACTS_PER_CHUNK) {
+                        if (!addContactOperations(batch, generator, existingEventReader, chunk,
+                                obsoleteEventIds, reminderMinutes, reminderSignature,
+                                titlesOnly)) {
+                            return false;
                         }
+                        chunk.clear();
+                    }
 
-                        String title = generateTitle(context, eventType, cursor,
-                                eventCustomLabelColumn, includeAge, displayName, age);
-
-                        if (title != null) {
-                            Log.d(Constants.TAG, "Title: " + title);
-                            Log.d(Constants.TAG, "BackRef is " + backRef);
-
-                            operationList.add(insertEvent(context, calendarId, eventDate,
-                                    iteratedYear, title, eventLookupKey));
-
-                            /*
-                             * Gets ContentProviderOperation to insert new reminder to the
-                             * ContentProviderOperation with the given backRef. This is done using
-                             * "withValueBackReference"
-                             */
-                            int noOfReminderOperations = 0;
-                            for (int i = 0; i < 3; i++) {
-                                if (reminderMinutes[i] != Constants.DISABLED_REMINDER) {
-                                    ContentProviderOperation.Builder builder = ContentProviderOperation
-                                            .newInsert(getBirthdayAdapterUri(Reminders.CONTENT_URI));
-
-                                    /*
-                                     * add reminder to last added event identified by backRef
-                                     *
-                                     * see http://stackoverflow.com/questions/4655291/semantics-of-
-                                     * withvaluebackreference
-                                     */
-                                    builder.withValueBackReference(Reminders.EVENT_ID, backRef);
-                                    builder.withValue(Reminders.MINUTES, reminderMinutes[i]);
-                                    builder.withValue(Reminders.METHOD, Reminders.METHOD_ALERT);
-                                    operationList.add(builder.build());
-
-                                    noOfReminderOperations += 1;
-                                }
-                            }
-
-                            // back references for the next reminders, 1 is for the event
-                            backRef += 1 + noOfReminderOperations;
-                        } else {
-                            Log.d(Constants.TAG, "Title is null -> Not inserting events and reminders!");
-                        }
+                    contact = new EventGenerator.Contact(contactEvents.getContactId());
+                    chunk.add(contact);
+                }
 
-                        /*
-                         * intermediate commit - otherwise the binder transaction fails on large
-                         * operationList
-                         */
-                        if (operationList.size() > 200) {
-                            try {
-                                Log.d(Constants.TAG, "Start applying the batch...");
-                                contentResolver.applyBatch(CalendarContract.AUTHORITY,
-                                        operationList);
-                                Log.d(Constants.TAG, "Applying the batch was successful!");
-                                backRef = 0;
-                                operationList.clear();
-                            } catch (Exception e) {
-                                Log.e(Constants.TAG, "Applying batch error!", e);
-                            }
-                        }
-                    }
+                long calendarId = calendars.getCalendarId(contactEvents.getAccountName(),
+                        contactEvents.getAccountType());
+                if (calendarId == -1) {
+                    return false;
                 }
+                contact.addEvent(contactEvents, calendarId);
+            }
+            if (!addContactOperations(batch, generator, existingEventReader, chunk,
+                    obsoleteEventIds, reminderMinutes, reminderSignature, titlesOnly)) {
+                return false;
             }
-        } finally {
-            if (!cursor.isClosed())
-                cursor.close();
-        }
 
-        /* Create events */
-        if (operationList.size() > 0) {
-            try {
-                Log.d(Constants.TAG, "Start applying the batch...");
-                contentResolver.applyBatch(CalendarContract.AUTHORITY, operationList);
-                Log.d(Constants.TAG, "Applying the batch was successful!");
-            } catch (Exception e) {
-                Log.e(Constants.TAG, "Applying batch error!", e);
+            /* Delete events that are not generated anymore */
+            int remainingCount = titlesOnly ? 0 : MAX_REMAINING_EVENTS;
+            while (remainingCount == MAX_REMAINING_EVENTS) {
+                remainingCount = existingEventReader.readRemaining(obsoleteEventIds,
+                        MAX_REMAINING_EVENTS);
+                if (remainingCount == -1) {
+                    Log.e(Constants.TAG, "Unable to get event mappings! Cursor returns null!");
+                    return false;
+                }
+                deleteEvents(batch, obsoleteEventIds);
             }
+
+            /* Apply remaining operations */
+            batch.apply();
+        } finally {
+            // stops the writer thread if the sync has been aborted
+            batch.cancel();
+            generator.shutdown();
+            contactEvents.close();
         }
+
+        return !batch.hasFailed();
     }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.annotation.SuppressLint;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.ContactsContract;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.provider.ProviderHelper;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+/**
+ * Determines the contacts that changed since the last successful sync.
+ * <p/>
+ * The versions of all raw contacts (RawContacts.VERSION, incremented on every change of a raw
+ * contact or its data) are compared with the versions stored at the last successful sync. This
+ * also detects new and deleted raw contacts and raw contacts moved to another contact. On Android
+ * >= 4.3 contacts with a Contacts.CONTACT_LAST_UPDATED_TIMESTAMP after the watermark of the last
+ * successful sync are added, too.
+ * <p/>
+ * On Android >= 4.3 contacts deleted after the last successful sync are read from the
+ * DeletedContacts tombstones. Their events can be deleted directly by their contact key, without
+ * reading contacts or events. Tombstones are only kept for a limited time, older deletions are
+ * still detected by comparing the versions.
+ * <p/>
+ * The new versions and watermark are only persisted by {@link #commit(Context)} after the calendar
+ * has been synced successfully.
+ */
+@SuppressLint("NewApi")
+class ContactChangeTracker {
+    private static final int MAX_OPERATIONS = 500;
+
+    private final TreeSet<Long> mChangedContactIds = new TreeSet<>();
+    private final TreeSet<Long> mDeletedContactIds = new TreeSet<>();
+    private final ArrayList<ContentProviderOperation> mVersionOperations = new ArrayList<>();
+    private long mWatermark;
+    private long mDeletedWatermark;
+
+    private ContactChangeTracker(long watermark, long deletedWatermark) {
+        mWatermark = watermark;
+        mDeletedWatermark = deletedWatermark;
+    }
+
+    /**
+     * @return tracker with the changes or null if the contacts could not be read
+     */
+    static ContactChangeTracker query(Context context, ContentResolver contentResolver) {
+        long watermark = ProviderHelper.getSyncStateLong(context,
+                BirthdayAdapterContract.SyncState.KEY_CONTACTS_WATERMARK, 0);
+        long deletedWatermark = ProviderHelper.getSyncStateLong(context,
+                BirthdayAdapterContract.SyncState.KEY_DELETED_CONTACTS_WATERMARK, 0);
+        ContactChangeTracker tracker = new ContactChangeTracker(watermark, deletedWatermark);
+
+        if (!tracker.compareVersions(context, contentResolver)) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= 18) {
+            tracker.readUpdatedContacts(contentResolver);
+            tracker.readDeletedContacts(contentResolver);
+        }
+        // deleted contacts have no events to read anymore
+        tracker.mChangedContactIds.removeAll(tracker.mDeletedContactIds);
+
+        Log.d(Constants.TAG, "Contacts changed since last sync: " + tracker.mChangedContactIds.size()
+                + ", deleted: " + tracker.mDeletedContactIds.size());
+        return tracker;
+    }
+
+    /**
+     * Merges the raw contacts with the stored versions, both sorted by raw contact id
+     */
+    private boolean compareVersions(Context context, ContentResolver contentResolver) {
+        Cursor current = contentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
+                new String[]{ContactsContract.RawContacts._ID,
+                        ContactsContract.RawContacts.CONTACT_ID,
+                        ContactsContract.RawContacts.VERSION},
+                ContactsContract.RawContacts.DELETED + " = 0", null,
+                ContactsContract.RawContacts._ID);
+        Cursor stored = ProviderHelper.getRawContactVersionsCursor(context);
+
+        try {
+            if (current == null || stored == null) {
+                Log.e(Constants.TAG, "Unable to get raw contact versions! Cursor returns null!");
+                return false;
+            }
+
+            boolean hasCurrent = current.moveToFirst();
+            boolean hasStored = stored.moveToFirst();
+            while (hasCurrent || hasStored) {
+                long currentId = hasCurrent ? current.getLong(0) : Long.MAX_VALUE;
+                long storedId = hasStored ? stored.getLong(0) : Long.MAX_VALUE;
+
+                if (currentId == storedId) {
+                    long contactId = current.getLong(1);
+                    long storedContactId = stored.getLong(1);
+                    long version = current.getLong(2);
+                    if (contactId != storedContactId || version != stored.getLong(2)) {
+                        // changed or moved to another contact
+                        mChangedContactIds.add(contactId);
+                        mChangedContactIds.add(storedContactId);
+                        addVersion(currentId, contactId, version);
+                    }
+                    hasCurrent = current.moveToNext();
+                    hasStored = stored.moveToNext();
+                } else if (currentId < storedId) {
+                    // new raw contact
+                    long contactId = current.getLong(1);
+                    mChangedContactIds.add(contactId);
+                    addVersion(currentId, contactId, current.getLong(2));
+                    hasCurrent = current.moveToNext();
+                } else {
+                    // deleted raw contact
+                    mChangedContactIds.add(stored.getLong(1));
+                    mVersionOperations.add(ContentProviderOperation.newDelete(
+                            BirthdayAdapterContract.RawContactVersions.buildUri(
+                                    Long.toString(storedId))).build());
+                    hasStored = stored.moveToNext();
+                }
+            }
+            return true;
+        } finally {
+            if (current != null && !current.isClosed())
+                current.close();
+            if (stored != null && !stored.isClosed())
+                stored.close();
+        }
+    }
+
+    private void addVersion(long rawContactId, long contactId, long version) {
+        mVersionOperations.add(ContentProviderOperation.newInsert(
+                BirthdayAdapterContract.RawContactVersions.CONTENT_URI)
+                .withValue(BirthdayAdapterContract.RawContactVersions._ID, rawContactId)
+                .withValue(BirthdayAdapterContract.RawContactVersions.CONTACT_ID, contactId)
+                .withValue(BirthdayAdapterContract.RawContactVersions.VERSION, version)
+                .build());
+    }
+
+    /**
+     * Adds contacts updated after the watermark, e.g., by joining or splitting contacts, and moves
+     * the watermark to the latest update
+     */
+    private void readUpdatedContacts(ContentResolver contentResolver) {
+        Cursor cursor = contentResolver.query(ContactsContract.Contacts.CONTENT_URI,
+                new String[]{ContactsContract.Contacts._ID,
+                        ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP},
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+                new String[]{String.valueOf(mWatermark)}, null);
+
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                mChangedContactIds.add(cursor.getLong(0));
+                mWatermark = Math.max(mWatermark, cursor.getLong(1));
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed())
+                cursor.close();
+        }
+    }
+
+    /**
+     * Adds contacts deleted after the deleted watermark and moves the watermark to the latest
+     * deletion
+     */
+    private void readDeletedContacts(ContentResolver contentResolver) {
+        Cursor cursor = contentResolver.query(ContactsContract.DeletedContacts.CONTENT_URI,
+                new String[]{ContactsContract.DeletedContacts.CONTACT_ID,
+                        ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP},
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?",
+                new String[]{String.valueOf(mDeletedWatermark)}, null);
+
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                mDeletedContactIds.add(cursor.getLong(0));
+                mDeletedWatermark = Math.max(mDeletedWatermark, cursor.getLong(1));
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed())
+                cursor.close();
+        }
+    }
+
+    /**
+     * @return ids of changed contacts, sorted ascending
+     */
+    TreeSet<Long> getChangedContactIds() {
+        return mChangedContactIds;
+    }
+
+    /**
+     * @return ids of deleted contacts, sorted ascending
+     */
+    TreeSet<Long> getDeletedContactIds() {
+        return mDeletedContactIds;
+    }
+
+    /**
+     * Persists the new versions and the watermark. Call only after a successful sync.
+     */
+    void commit(Context context) {
+        ContentResolver contentResolver = context.getContentResolver();
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+        for (ContentProviderOperation operation : mVersionOperations) {
+            operationList.add(operation);
+            if (operationList.size() >= MAX_OPERATIONS) {
+                applyVersions(contentResolver, operationList);
+            }
+        }
+        applyVersions(contentResolver, operationList);
+        mVersionOperations.clear();
+
+        ProviderHelper.setSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_CONTACTS_WATERMARK, String.valueOf(mWatermark));
+        ProviderHelper.setSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_DELETED_CONTACTS_WATERMARK,
+                String.valueOf(mDeletedWatermark));
+    }
+
+    private static void applyVersions(ContentResolver contentResolver,
+                                      ArrayList<ContentProviderOperation> operationList) {
+        if (operationList.isEmpty()) {
+            return;
+        }
+        try {
+            contentResolver.applyBatch(BirthdayAdapterContract.CONTENT_AUTHORITY, operationList);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Storing raw contact versions failed!", e);
+        }
+        operationList.clear();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.birthdayadapter.service;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.provider.ProviderHelper;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Keeps the local mirror of all contact events (BirthdayAdapterContract.ContactEvents) up to date.
+ * <p/>
+ * Only the events of changed contacts are copied from the contacts provider. The event dates are
+ * parsed once when copied and parsed again only if the dd/MM preference changes, date strings
+ * already known to be slow or unparseable are looked up in the {@link EventDateCache}. The sync
+ * reads all events from the mirror, thus unchanged address books are not read again.
+ */
+class ContactEventMirror {
+    private static final String[] PROJECTION = new String[]{
+            ContactsContract.Data.RAW_CONTACT_ID,
+            ContactsContract.Data.CONTACT_ID,
+            ContactsContract.Data.LOOKUP_KEY,
+            ContactsContract.Data.DISPLAY_NAME,
+            ContactsContract.RawContacts.ACCOUNT_NAME,
+            ContactsContract.RawContacts.ACCOUNT_TYPE,
+            ContactsContract.CommonDataKinds.Event.TYPE,
+            ContactsContract.CommonDataKinds.Event.LABEL,
+            ContactsContract.CommonDataKinds.Event.START_DATE,
+            ContactsContract.Data.DATA_VERSION
+    };
+
+    private static final int MAX_OPERATIONS = 500;
+
+    private ContactEventMirror() {
+    }
+
+    /**
+     * Replaces the mirrored events of the given contacts with their current events
+     *
+     * @param dateCache  parses the event dates, shared by the refreshes of one sync
+     * @param contactIds contacts to refresh, null to refresh all contacts
+     * @return false if the contacts could not be read or the mirror could not be written
+     */
+    static boolean refresh(ContentResolver contentResolver, EventDateCache dateCache,
+                           Collection<Long> contactIds) {
+        String where = ContactsContract.Data.MIMETYPE + "= ?";
+        String mirrorWhere = null;
+        if (contactIds != null) {
+            if (contactIds.isEmpty()) {
+                return true;
+            }
+            String ids = TextUtils.join(",", contactIds);
+            where += " AND " + ContactsContract.Data.CONTACT_ID + " IN (" + ids + ")";
+            mirrorWhere = BirthdayAdapterContract.ContactEvents.CONTACT_ID + " IN (" + ids + ")";
+        }
+
+        Cursor cursor = contentResolver.query(ContactsContract.Data.CONTENT_URI, PROJECTION, where,
+                new String[]{ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE},
+                ContactsContract.Data.CONTACT_ID);
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get events from contacts! Cursor returns null!");
+            return false;
+        }
+
+        /*
+         * The events are refreshed in batches of consecutive contacts. Each batch deletes the
+         * mirrored events of its range of contact ids and inserts their current events in one
+         * transaction of the provider, thus a failed refresh leaves every contact with either all
+         * of its old or all of its new events. The versions of the contacts are only stored after
+         * a successful sync, so the next sync refreshes them again.
+         */
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+        // the events of the contacts up to this id have been refreshed
+        long refreshedContactId = Long.MIN_VALUE;
+        long lastContactId = Long.MIN_VALUE;
+        try {
+            while (cursor.moveToNext()) {
+                long contactId = cursor.getLong(1);
+                // the events of a contact are never split across batches
+                if (operationList.size() >= MAX_OPERATIONS && contactId != lastContactId) {
+                    if (!applyRange(contentResolver, operationList, mirrorWhere,
+                            refreshedContactId, lastContactId)) {
+                        return false;
+                    }
+                    refreshedContactId = lastContactId;
+                }
+                lastContactId = contactId;
+
+                ContentValues values = new ContentValues();
+                values.put(BirthdayAdapterContract.ContactEvents.RAW_CONTACT_ID, cursor.getLong(0));
+                values.put(BirthdayAdapterContract.ContactEvents.CONTACT_ID, contactId);
+                values.put(BirthdayAdapterContract.ContactEvents.LOOKUP_KEY, cursor.getString(2));
+                values.put(BirthdayAdapterContract.ContactEvents.DISPLAY_NAME, cursor.getString(3));
+                values.put(BirthdayAdapterContract.ContactEvents.ACCOUNT_NAME, cursor.getString(4));
+                values.put(BirthdayAdapterContract.ContactEvents.ACCOUNT_TYPE, cursor.getString(5));
+                values.put(BirthdayAdapterContract.ContactEvents.TYPE, cursor.getInt(6));
+                values.put(BirthdayAdapterContract.ContactEvents.LABEL, cursor.getString(7));
+                values.put(BirthdayAdapterContract.ContactEvents.DATE, cursor.getString(8));
+                values.put(BirthdayAdapterContract.ContactEvents.VERSION, cursor.getLong(9));
+                putParsedDate(values, dateCache.parse(cursor.getString(8)));
+
+                operationList.add(ContentProviderOperation
+                        .newInsert(BirthdayAdapterContract.ContactEvents.CONTENT_URI)
+                        .withValues(values).build());
+            }
+        } finally {
+            if (!cursor.isClosed())
+                cursor.close();
+        }
+
+        return applyRange(contentResolver, operationList, mirrorWhere, refreshedContactId,
+                Long.MAX_VALUE);
+    }
+
+    /**
+     * @return ids of the mirrored contacts with events from one of the given accounts or null if
+     * the mirror could not be read
+     */
+    static TreeSet<Long> queryContactIds(ContentResolver contentResolver,
+                                         Collection<Account> accounts) {
+        TreeSet<Long> contactIds = new TreeSet<>();
+        if (accounts.isEmpty()) {
+            return contactIds;
+        }
+
+        StringBuilder where = new StringBuilder();
+        String[] whereArgs = new String[accounts.size() * 2];
+        int i = 0;
+        for (Account account : accounts) {
+            if (where.length() > 0) {
+                where.append(" OR ");
+            }
+            where.append('(').append(BirthdayAdapterContract.ContactEvents.ACCOUNT_TYPE)
+                    .append(" = ? AND ").append(BirthdayAdapterContract.ContactEvents.ACCOUNT_NAME)
+                    .append(" = ?)");
+            whereArgs[i++] = account.type;
+            whereArgs[i++] = account.name;
+        }
+
+        Cursor cursor = contentResolver.query(BirthdayAdapterContract.ContactEvents.CONTENT_URI,
+                new String[]{BirthdayAdapterContract.ContactEvents.CONTACT_ID},
+                where.toString(), whereArgs, null);
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get mirrored contact events! Cursor returns null!");
+            return null;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+            }
+        } finally {
+            if (!cursor.isClosed())
+                cursor.close();
+        }
+        return contactIds;
+    }
+
+    /**
+     * Parses the dates of all mirrored events again, if the dd/MM preference changed since they
+     * were parsed
+     *
+     * @return false if the mirror could not be read or written
+     */
+    static boolean reparseIfNeeded(Context context, ContentResolver contentResolver,
+                                   SyncConfig config) {
+        // the results in the mirror were parsed with the other preference
+        EventDateCache dateCache = new EventDateCache(context, contentResolver, config, false);
+        boolean preferddSlashMM = dateCache.getPreferddSlashMM();
+        if (String.valueOf(preferddSlashMM).equals(ProviderHelper.getSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_PARSED_DD_SLASH_MM))) {
+            return true;
+        }
+
+        Log.d(Constants.TAG, "dd/MM preference changed, parsing all event dates again...");
+
+        Cursor cursor = contentResolver.query(BirthdayAdapterContract.ContactEvents.CONTENT_URI,
+                new String[]{BirthdayAdapterContract.ContactEvents._ID,
+                        BirthdayAdapterContract.ContactEvents.DATE}, null, null, null);
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get mirrored contact events! Cursor returns null!");
+            return false;
+        }
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                putParsedDate(values, dateCache.parse(cursor.getString(1)));
+
+                operationList.add(ContentProviderOperation
+                        .newUpdate(BirthdayAdapterContract.ContactEvents.buildUri(
+                                Long.toString(cursor.getLong(0))))
+                        .withValues(values).build());
+                if (operationList.size() >= MAX_OPERATIONS && !apply(contentResolver, operationList)) {
+                    return false;
+                }
+            }
+        } finally {
+            if (!cursor.isClosed())
+                cursor.close();
+        }
+
+        if (!apply(contentResolver, operationList)) {
+            return false;
+        }
+        ProviderHelper.setSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_PARSED_DD_SLASH_MM,
+                String.valueOf(preferddSlashMM));
+        return true;
+    }
+
+    /**
+     * Puts month, day and year of the parsed date string, or nulls if it could not be parsed, and
+     * the format that succeeded
+     */
+    private static void putParsedDate(ContentValues values, long result) {
+        int eventDate = EventDateParser.getDate(result);
+        if (eventDate != EventDateParser.INVALID) {
+            values.put(BirthdayAdapterContract.ContactEvents.MONTH,
+                    EventDateParser.getMonth(eventDate));
+            values.put(BirthdayAdapterContract.ContactEvents.DAY,
+                    EventDateParser.getDay(eventDate));
+            values.put(BirthdayAdapterContract.ContactEvents.YEAR,
+                    EventDateParser.getYear(eventDate));
+        } else {
+            values.putNull(BirthdayAdapterContract.ContactEvents.MONTH);
+            values.putNull(BirthdayAdapterContract.ContactEvents.DAY);
+            values.putNull(BirthdayAdapterContract.ContactEvents.YEAR);
+        }
+        values.put(BirthdayAdapterContract.ContactEvents.FORMAT, EventDateParser.getFormat(result));
+    }
+
+    /**
+     * Applies the inserted events of the contacts with ids in (afterContactId, toContactId]
+     * together with the deletion of their mirrored events
+     *
+     * @param mirrorWhere    refreshed contacts, null for all contacts
+     * @param afterContactId Long.MIN_VALUE for no lower bound
+     * @param toContactId    Long.MAX_VALUE for no upper bound
+     */
+    private static boolean applyRange(ContentResolver contentResolver,
+                                      ArrayList<ContentProviderOperation> operationList,
+                                      String mirrorWhere, long afterContactId, long toContactId) {
+        ArrayList<String> where = new ArrayList<>();
+        if (mirrorWhere != null) {
+            where.add("(" + mirrorWhere + ")");
+        }
+        if (afterContactId != Long.MIN_VALUE) {
+            where.add(BirthdayAdapterContract.ContactEvents.CONTACT_ID + " > " + afterContactId);
+        }
+        if (toContactId != Long.MAX_VALUE) {
+            where.add(BirthdayAdapterContract.ContactEvents.CONTACT_ID + " <= " + toContactId);
+        }
+        operationList.add(0, ContentProviderOperation
+                .newDelete(BirthdayAdapterContract.ContactEvents.CONTENT_URI)
+                .withSelection(where.isEmpty() ? null : TextUtils.join(" AND ", where), null)
+                .build());
+        return apply(contentResolver, operationList);
+    }
+
+    private static boolean apply(ContentResolver contentResolver,
+                                 ArrayList<ContentProviderOperation> operationList) {
+        if (operationList.isEmpty()) {
+            return true;
+        }
+        try {
+            contentResolver.applyBatch(BirthdayAdapterContract.CONTENT_AUTHORITY, operationList);
+            return true;
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Updating the contact event mirror failed!", e);
+            return false;
+        } finally {
+            operationList.clear();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.text.TextUtils;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Streams all contact events with a parsed date, but only those from Accounts not in our
+ * blacklist!
+ * <p/>
+ * All events are read with one query on the local mirror of the contact events, which also
+ * contains the account of the corresponding raw contact. Events are sorted by contact id and are
+ * filtered by account and deduplicated while reading. Only the current row is held in memory.
+ * <p/>
+ * With a calendar per account, see AccountCalendars, events of blacklisted accounts are not
+ * filtered, their calendars are hidden instead. Of the duplicated events of a contact, the event
+ * of a raw contact from an allowed account is read first, then the one with the lowest raw
+ * contact id. Thus each event belongs to exactly one calendar, and stays visible as long as one
+ * of its accounts is allowed.
+ */
+class ContactEventReader {
+    private static final String[] PROJECTION = new String[]{
+            BirthdayAdapterContract.ContactEvents.CONTACT_ID,
+            BirthdayAdapterContract.ContactEvents.DISPLAY_NAME,
+            BirthdayAdapterContract.ContactEvents.LOOKUP_KEY,
+            BirthdayAdapterContract.ContactEvents.YEAR,
+            BirthdayAdapterContract.ContactEvents.TYPE,
+            BirthdayAdapterContract.ContactEvents.LABEL,
+            BirthdayAdapterContract.ContactEvents.ACCOUNT_NAME,
+            BirthdayAdapterContract.ContactEvents.ACCOUNT_TYPE,
+            BirthdayAdapterContract.ContactEvents.MONTH,
+            BirthdayAdapterContract.ContactEvents.DAY
+    };
+
+    private final Cursor mCursor;
+    // null if events of all accounts are read
+    private final HashSet<Account> mBlacklist;
+
+    // identifiers of already read events of the current contact to check for duplicates
+    private final HashSet<String> mEventIdentifiers = new HashSet<>();
+
+    private long mContactId = -1;
+    private String mDisplayName;
+    private String mLookupKey;
+    private int mYear;
+    private int mMonth;
+    private int mDay;
+    private int mType;
+    private String mLabel;
+    private String mAccountName;
+    private String mAccountType;
+
+    /**
+     * Get all events with their raw contact's Account name and type. Only raw contacts have an
+     * Account affiliation. We don't get the events from the (merged) contact, otherwise we would
+     * also get events that should have been filtered! Events whose date could not be parsed are
+     * skipped.
+     *
+     * @param accountCalendars read the events of blacklisted accounts, but prefer duplicated
+     *                         events of allowed accounts
+     * @param contactIds       only read events of these contacts, null to read the events of all
+     *                         contacts
+     * @return reader over the contact events or null if the mirror is not available
+     */
+    static ContactEventReader query(ContentResolver contentResolver, HashSet<Account> blacklist,
+                                    boolean accountCalendars, Collection<Long> contactIds) {
+        String where = BirthdayAdapterContract.ContactEvents.YEAR + " IS NOT NULL";
+        if (contactIds != null) {
+            where += " AND " + BirthdayAdapterContract.ContactEvents.CONTACT_ID + " IN ("
+                    + TextUtils.join(",", contactIds) + ")";
+        }
+        String sortOrder = BirthdayAdapterContract.ContactEvents.DEFAULT_SORT;
+        if (accountCalendars && !blacklist.isEmpty()) {
+            sortOrder = BirthdayAdapterContract.ContactEvents.CONTACT_ID + " ASC, "
+                    + buildBlacklistedExpression(blacklist) + " ASC, "
+                    + BirthdayAdapterContract.ContactEvents.RAW_CONTACT_ID + " ASC";
+        }
+        Cursor cursor = contentResolver.query(BirthdayAdapterContract.ContactEvents.CONTENT_URI,
+                PROJECTION, where, null, sortOrder);
+
+        if (cursor == null) {
+            return null;
+        }
+        return new ContactEventReader(cursor, accountCalendars ? null : blacklist);
+    }
+
+    /**
+     * @return expression that is 1 for events of blacklisted accounts, 0 or null otherwise
+     */
+    private static String buildBlacklistedExpression(HashSet<Account> blacklist) {
+        StringBuilder accounts = new StringBuilder();
+        for (Account account : blacklist) {
+            if (accounts.length() > 0) {
+                accounts.append(',');
+            }
+            accounts.append(DatabaseUtils.sqlEscapeString(account.type + '\t' + account.name));
+        }
+        return "(" + BirthdayAdapterContract.ContactEvents.ACCOUNT_TYPE + " || '\t' || "
+                + BirthdayAdapterContract.ContactEvents.ACCOUNT_NAME + " IN (" + accounts + "))";
+    }
+
+    private ContactEventReader(Cursor cursor, HashSet<Account> blacklist) {
+        mCursor = cursor;
+        mBlacklist = blacklist;
+    }
+
+    /**
+     * Moves to the next event that is allowed and not a duplicate
+     *
+     * @return false if there are no more events
+     */
+    boolean moveToNext() {
+        while (mCursor.moveToNext()) {
+            String accName = mCursor.getString(6);
+            String accType = mCursor.getString(7);
+
+            if (!isAccountAllowed(accName, accType)) {
+                continue;
+            }
+
+            long contactId = mCursor.getLong(0);
+            if (contactId != mContactId) {
+                mEventIdentifiers.clear();
+                mContactId = contactId;
+            }
+
+            mDisplayName = mCursor.getString(1);
+            mLookupKey = mCursor.getString(2);
+            mYear = mCursor.getInt(3);
+            mType = mCursor.getInt(4);
+            mLabel = mCursor.getString(5);
+            mAccountName = accName;
+            mAccountType = accType;
+            mMonth = mCursor.getInt(8);
+            mDay = mCursor.getInt(9);
+
+            /*
+             * If two SyncAdapter Accounts have the same contact with duplicated events, the event
+             * will already be in the HashSet mEventIdentifiers.
+             *
+             * eventIdentifier does not include the date, because the String formats of the date
+             * differ between accounts.
+             */
+            String eventIdentifier = mLookupKey + mType + mLabel;
+            if (mEventIdentifiers.add(eventIdentifier)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if Account is allowed (not blacklisted)
+     */
+    private boolean isAccountAllowed(String accName, String accType) {
+        if (TextUtils.isEmpty(accType) || TextUtils.isEmpty(accName)) {
+            // Workaround: Simply add events without proper Account
+            return true;
+        }
+        return mBlacklist == null || !mBlacklist.contains(new Account(accName, accType));
+    }
+
+    long getContactId() {
+        return mContactId;
+    }
+
+    String getDisplayName() {
+        return mDisplayName;
+    }
+
+    String getLookupKey() {
+        return mLookupKey;
+    }
+
+    /**
+     * @return year of the event, 1700 if the date has no year
+     */
+    int getYear() {
+        return mYear;
+    }
+
+    /**
+     * @return month of the event, 1-12
+     */
+    int getMonth() {
+        return mMonth;
+    }
+
+    int getDay() {
+        return mDay;
+    }
+
+    int getType() {
+        return mType;
+    }
+
+    String getLabel() {
+        return mLabel;
+    }
+
+    String getAccountName() {
+        return mAccountName;
+    }
+
+    String getAccountType() {
+        return mAccountType;
+    }
+
+    void close() {
+        if (!mCursor.isClosed()) {
+            mCursor.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.provider.ProviderHelper;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Parses event dates with {@link EventDateParser} and remembers the results of date strings that
+ * needed the slow SimpleDateFormats, including the strings that could not be parsed at all.
+ * <p/>
+ * The results are persisted in the contact event mirror, which stores the parsed date and format
+ * of each date string. They are loaded from there on the first slow date string, if the mirror
+ * has been parsed with the current dd/MM preference. Known unparseable strings are not parsed and
+ * logged again.
+ */
+class EventDateCache {
+    private static final int MAX_ENTRIES = 1000;
+
+    private static final String[] PROJECTION = new String[]{
+            BirthdayAdapterContract.ContactEvents.DATE,
+            BirthdayAdapterContract.ContactEvents.YEAR,
+            BirthdayAdapterContract.ContactEvents.MONTH,
+            BirthdayAdapterContract.ContactEvents.DAY,
+            BirthdayAdapterContract.ContactEvents.FORMAT
+    };
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final boolean mPreferddSlashMM;
+    private final TimeZone mTimeZone;
+
+    // least recently used results are removed first
+    private final LinkedHashMap<String, Long> mResults =
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private boolean mLoaded;
+
+    /**
+     * @param persisted false to ignore the results in the mirror, e.g., when parsing it again
+     *                  after the dd/MM preference changed
+     */
+    EventDateCache(Context context, ContentResolver contentResolver, SyncConfig config,
+                   boolean persisted) {
+        mContext = context;
+        mContentResolver = contentResolver;
+        mPreferddSlashMM = config.getPreferddSlashMM();
+        // TimeZone.getDefault() returns a copy
+        mTimeZone = TimeZone.getDefault();
+        mLoaded = !persisted;
+    }
+
+    boolean getPreferddSlashMM() {
+        return mPreferddSlashMM;
+    }
+
+    /**
+     * @return packed date and format, use {@link EventDateParser#getDate(long)} and
+     * {@link EventDateParser#getFormat(long)}
+     */
+    long parse(String eventDateString) {
+        if (eventDateString == null) {
+            Log.d(Constants.TAG, "Event Date String is null!");
+            return EventDateParser.INVALID;
+        }
+
+        long result = EventDateParser.parseKnownShape(eventDateString, mPreferddSlashMM,
+                mTimeZone);
+        if (result != EventDateParser.INVALID) {
+            return result;
+        }
+
+        if (!mLoaded) {
+            load();
+            mLoaded = true;
+        }
+        Long cached = mResults.get(eventDateString);
+        if (cached != null) {
+            return cached;
+        }
+
+        result = EventDateParser.parseWithSimpleDateFormats(eventDateString, mPreferddSlashMM);
+        mResults.put(eventDateString, result);
+        return result;
+    }
+
+    /**
+     * Loads the slow and unparseable date strings of the mirror
+     */
+    private void load() {
+        if (!String.valueOf(mPreferddSlashMM).equals(ProviderHelper.getSyncState(mContext,
+                BirthdayAdapterContract.SyncState.KEY_PARSED_DD_SLASH_MM))) {
+            return;
+        }
+
+        Cursor cursor = mContentResolver.query(BirthdayAdapterContract.ContactEvents.CONTENT_URI,
+                PROJECTION, BirthdayAdapterContract.ContactEvents.FORMAT + " = "
+                        + BirthdayAdapterContract.ContactEvents.FORMAT_UNPARSEABLE + " OR "
+                        + BirthdayAdapterContract.ContactEvents.FORMAT + " >= "
+                        + BirthdayAdapterContract.ContactEvents.FORMAT_FLAG_FALLBACK,
+                null, null);
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get mirrored contact events! Cursor returns null!");
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext() && mResults.size() < MAX_ENTRIES) {
+                String date = cursor.getString(0);
+                if (date == null) {
+                    continue;
+                }
+                int packed = cursor.isNull(1) ? EventDateParser.INVALID
+                        : cursor.getInt(1) * 10000 + cursor.getInt(2) * 100 + cursor.getInt(3);
+                mResults.put(date, EventDateParser.withFormat(packed, cursor.getInt(4)));
+            }
+        } finally {
+            if (!cursor.isClosed())
+                cursor.close();
+        }
+
+        Log.d(Constants.TAG, "Loaded " + mResults.size() + " parsed event dates from mirror");
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.birthdayadapter.service;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract.ContactEvents;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The date format in the contact events is not standardized! This parser tries the known date
+ * formats in a fixed order, see also: http://dmfs.org/carddav/?date_format
+ * <p/>
+ * The known shapes (yyyy-MM-dd, --MM-dd, yyyyMMdd, unix timestamps, dd.MM.yyyy, dd/MM[/yyyy] and
+ * MM/dd[/yyyy]) are classified in one pass over the string and converted without allocations. The
+ * result is the same as if the formats were tried with lenient SimpleDateFormats in this order:
+ * <ol>
+ * <li>yyyy-MM-dd, Most used format!</li>
+ * <li>--MM-dd, Most used format without year!</li>
+ * <li>yyyyMMdd, HTC Desire, only strings of length 8</li>
+ * <li>Unix timestamp, Some Motorola devices</li>
+ * <li>dd.MM.yyyy</li>
+ * <li>yyyy.MM.dd</li>
+ * <li>dd/MM/yyyy and dd/MM, or MM/dd/yyyy and MM/dd (Used by Facebook), depending on the
+ * preference</li>
+ * </ol>
+ * Lenient means that out of range months and days are rolled over, e.g., 1990-13-01 is parsed as
+ * 1991-01-01. Dates without year get the year 1700.
+ * <p/>
+ * All other strings, e.g., with whitespace or trailing characters, and dates before 1600 (where
+ * the Julian calendar would be involved) are parsed by trying these SimpleDateFormats. Formats
+ * with separators that do not occur in the string are skipped, as they can never succeed.
+ * <p/>
+ * The format that succeeded is reported along with the date, the sync keeps statistics of them per
+ * account type. Use {@link EventDateCache} to parse, which remembers the results of the slow
+ * SimpleDateFormats.
+ */
+class EventDateParser {
+    /**
+     * Returned if the date could not be parsed
+     */
+    static final int INVALID = 0;
+
+    /**
+     * Year used for dates without year. When year < 1800, the age will be not displayed in
+     * brackets
+     */
+    static final int NO_YEAR = 1700;
+
+    // years handled by the fast path, before 1600 GregorianCalendar may involve the Julian calendar
+    private static final int MIN_YEAR = 1600;
+    private static final int MAX_YEAR = 9999;
+
+    // year used by SimpleDateFormat if the format has no year
+    private static final int DEFAULT_YEAR = 1970;
+
+    private EventDateParser() {
+    }
+
+    /**
+     * @return date packed as year * 10000 + month * 100 + day, month 1-12, or {@link #INVALID}
+     */
+    static int getDate(long result) {
+        return (int) result;
+    }
+
+    /**
+     * @return one of the ContactEvents.FORMAT_ constants, possibly with
+     * {@link ContactEvents#FORMAT_FLAG_FALLBACK}
+     */
+    static int getFormat(long result) {
+        return (int) (result >>> 32);
+    }
+
+    /**
+     * @return packed date and format, or {@link #INVALID} if the date is invalid
+     */
+    static long withFormat(int packed, int format) {
+        return packed == INVALID ? INVALID : ((long) format << 32) | packed;
+    }
+
+    static int getYear(int packed) {
+        return packed / 10000;
+    }
+
+    /**
+     * @return month 1-12
+     */
+    static int getMonth(int packed) {
+        return packed / 100 % 100;
+    }
+
+    static int getDay(int packed) {
+        return packed % 100;
+    }
+
+    /**
+     * Classifies the string by its digit runs and separators and parses the known shapes
+     *
+     * @param timeZone the default time zone, passed in as TimeZone.getDefault() returns a copy
+     * @return packed date and format, use {@link #getDate(long)} and {@link #getFormat(long)}, or
+     * {@link #INVALID} if the string must be parsed by
+     * {@link #parseWithSimpleDateFormats(String, boolean)}
+     */
+    static long parseKnownShape(String s, boolean preferddSlashMM, TimeZone timeZone) {
+        int length = s.length();
+        if (length == 0) {
+            return INVALID;
+        }
+
+        // --MM-dd: the year is missing, the string starts with two separators
+        boolean noYear = length > 2 && s.charAt(0) == '-' && s.charAt(1) == '-';
+        int start = noYear ? 2 : 0;
+
+        // up to three runs of digits, separated by the same separator
+        char separator = 0;
+        int parts = 0;
+        int part0 = 0;
+        int part1 = 0;
+        int part2 = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                // more than 4 digits may be a unix timestamp, parsed below
+                if (++digits > 4) {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+            } else if ((c == '-' || c == '.' || c == '/') && digits > 0 && parts < 2
+                    && (separator == 0 || separator == c)) {
+                separator = c;
+                if (parts == 0) {
+                    part0 = value;
+                } else {
+                    part1 = value;
+                }
+                parts++;
+                value = 0;
+                digits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+
+        if (separator == 0) {
+            return noYear ? INVALID : parseDigits(s, timeZone);
+        }
+        if (digits == 0 || digits > 4) {
+            return INVALID;
+        }
+        if (parts == 1) {
+            part1 = value;
+        } else {
+            part2 = value;
+        }
+        parts++;
+
+        if (noYear) {
+            // --MM-dd
+            return separator == '-' && parts == 2
+                    ? withFormat(withoutYear(part0, part1, timeZone),
+                    ContactEvents.FORMAT_NO_YEAR_MM_DD)
+                    : INVALID;
+        }
+        switch (separator) {
+            case '-':
+                // yyyy-MM-dd
+                return parts == 3
+                        ? withFormat(normalize(part0, part1, part2, timeZone),
+                        ContactEvents.FORMAT_YYYY_MM_DD)
+                        : INVALID;
+            case '.':
+                // dd.MM.yyyy, yyyy.MM.dd is never reached as lenient dd.MM.yyyy always succeeds
+                return parts == 3
+                        ? withFormat(normalize(part2, part1, part0, timeZone),
+                        ContactEvents.FORMAT_DD_MM_YYYY_DOT)
+                        : INVALID;
+            default:
+                if (preferddSlashMM) {
+                    // dd/MM/yyyy or dd/MM
+                    return parts == 3
+                            ? withFormat(normalize(part2, part1, part0, timeZone),
+                            ContactEvents.FORMAT_DD_MM_YYYY)
+                            : withFormat(withoutYear(part1, part0, timeZone),
+                            ContactEvents.FORMAT_DD_MM);
+                } else {
+                    // MM/dd/yyyy or MM/dd
+                    return parts == 3
+                            ? withFormat(normalize(part2, part0, part1, timeZone),
+                            ContactEvents.FORMAT_MM_DD_YYYY)
+                            : withFormat(withoutYear(part0, part1, timeZone),
+                            ContactEvents.FORMAT_MM_DD);
+                }
+        }
+    }
+
+    /**
+     * Parses strings only consisting of digits: yyyyMMdd if the length is 8, otherwise a unix
+     * timestamp in milliseconds
+     */
+    private static long parseDigits(String s, TimeZone timeZone) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+        }
+
+        if (length == 8) {
+            int year = (s.charAt(0) - '0') * 1000 + (s.charAt(1) - '0') * 100
+                    + (s.charAt(2) - '0') * 10 + (s.charAt(3) - '0');
+            int month = (s.charAt(4) - '0') * 10 + (s.charAt(5) - '0');
+            int day = (s.charAt(6) - '0') * 10 + (s.charAt(7) - '0');
+            return withFormat(normalize(year, month, day, timeZone),
+                    ContactEvents.FORMAT_YYYYMMDD);
+        }
+
+        // longer timestamps may overflow
+        if (length > 18) {
+            return INVALID;
+        }
+        long millis = 0;
+        for (int i = 0; i < length; i++) {
+            millis = millis * 10 + (s.charAt(i) - '0');
+        }
+        // date in the default time zone, like Calendar.setTime()
+        long localMillis = millis + timeZone.getOffset(millis);
+        return withFormat(fromEpochDay(floorDiv(localMillis, 86400000L)),
+                ContactEvents.FORMAT_TIMESTAMP);
+    }
+
+    /**
+     * Normalizes month and day in the default year, like SimpleDateFormat, and then sets the year
+     * to {@link #NO_YEAR}
+     */
+    private static int withoutYear(int month, int day, TimeZone timeZone) {
+        int packed = normalize(DEFAULT_YEAR, month, day, timeZone);
+        if (packed == INVALID) {
+            return INVALID;
+        }
+        // rolled over into a leap year, February 29 becomes March 1 in 1700
+        return normalize(NO_YEAR, getMonth(packed), getDay(packed), timeZone);
+    }
+
+    /**
+     * Normalizes a date like a lenient GregorianCalendar: Months out of range are rolled into
+     * the year, days out of range into the following or previous months.
+     */
+    private static int normalize(int year, int month, int day, TimeZone timeZone) {
+        // GregorianCalendar rolls over in the calendar of the given year
+        if (!isInFastRange(year)) {
+            return INVALID;
+        }
+        long monthIndex = (long) year * 12 + month - 1;
+        long baseYear = floorDiv(monthIndex, 12);
+        int baseMonth = (int) (monthIndex - baseYear * 12) + 1;
+        if (!isInFastRange(baseYear)) {
+            return INVALID;
+        }
+
+        long epochDay = toEpochDay(baseYear, baseMonth, 1) + day - 1;
+        return existsInTimeZone(epochDay, timeZone) ? fromEpochDay(epochDay) : INVALID;
+    }
+
+    /**
+     * Checks that the day has not been skipped by a time zone change, e.g., 1994-12-31 in
+     * Pacific/Kiritimati. GregorianCalendar moves such dates to the following day.
+     */
+    private static boolean existsInTimeZone(long epochDay, TimeZone timeZone) {
+        long localMidnight = epochDay * 86400000L;
+        long midnight = localMidnight - timeZone.getOffset(
+                localMidnight - timeZone.getOffset(localMidnight));
+        return floorDiv(midnight + timeZone.getOffset(midnight), 86400000L) == epochDay;
+    }
+
+    private static boolean isInFastRange(long year) {
+        return year >= MIN_YEAR && year <= MAX_YEAR;
+    }
+
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar
+     */
+    static long toEpochDay(long year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return packed date of days since 1970-01-01 or {@link #INVALID} if out of the fast range
+     */
+    private static int fromEpochDay(long epochDay) {
+        long z = epochDay + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (!isInFastRange(year)) {
+            return INVALID;
+        }
+        return (int) year * 10000 + month * 100 + day;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+
+    /**
+     * Tries the date formats with SimpleDateFormat
+     *
+     * @return packed date and format with {@link ContactEvents#FORMAT_FLAG_FALLBACK} or
+     * {@link #INVALID}
+     */
+    static long parseWithSimpleDateFormats(String eventDateString, boolean preferddSlashMM) {
+        Date eventDate = null;
+        int format = ContactEvents.FORMAT_UNPARSEABLE;
+
+        // formats can only succeed if their separator occurs in the string
+        boolean hasDash = eventDateString.indexOf('-') >= 0;
+        boolean hasDot = eventDateString.indexOf('.') >= 0;
+        boolean hasSlash = eventDateString.indexOf('/') >= 0;
+
+        // yyyy-MM-dd, Most used format!
+        if (hasDash) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyy-MM-dd", false);
+            format = ContactEvents.FORMAT_YYYY_MM_DD;
+        }
+
+        // --MM-dd, Most used format without year!
+        if (eventDate == null && hasDash) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "--MM-dd", true);
+            format = ContactEvents.FORMAT_NO_YEAR_MM_DD;
+        }
+
+        // yyyyMMdd, HTC Desire
+        if (eventDate == null) {
+            if (eventDateString.length() == 8) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyyMMdd", false);
+                format = ContactEvents.FORMAT_YYYYMMDD;
+            }
+        }
+
+        // Unix timestamp, Some Motorola devices
+        if (eventDate == null && isSignedNumber(eventDateString)) {
+            try {
+                eventDate = new Date(Long.parseLong(eventDateString));
+                format = ContactEvents.FORMAT_TIMESTAMP;
+            } catch (NumberFormatException e) {
+                // try next format
+            }
+        }
+
+        // dd.MM.yyyy
+        if (eventDate == null && hasDot) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd.MM.yyyy", false);
+            format = ContactEvents.FORMAT_DD_MM_YYYY_DOT;
+        }
+
+        // yyyy.MM.dd
+        if (eventDate == null && hasDot) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyy.MM.dd", false);
+            format = ContactEvents.FORMAT_YYYY_MM_DD_DOT;
+        }
+
+        /**
+         * Prefer dd/MM/yyyy over MM/dd/yyyy ?
+         */
+        if (preferddSlashMM) {
+            // dd/MM/yyyy
+            if (eventDate == null && hasSlash) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd/MM/yyyy",
+                        false);
+                format = ContactEvents.FORMAT_DD_MM_YYYY;
+            }
+
+            // dd/MM
+            if (eventDate == null && hasSlash) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd/MM", true);
+                format = ContactEvents.FORMAT_DD_MM;
+            }
+        } else {
+            // MM/dd/yyyy, Used by Facebook
+            if (eventDate == null && hasSlash) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "MM/dd/yyyy",
+                        false);
+                format = ContactEvents.FORMAT_MM_DD_YYYY;
+            }
+
+            //MM/dd, Used by Facebook
+            if (eventDate == null && hasSlash) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "MM/dd", true);
+                format = ContactEvents.FORMAT_MM_DD;
+            }
+        }
+
+        /* Return */
+        if (eventDate != null) {
+            Log.d(Constants.TAG, "Event Date String " + eventDateString + " was parsed as "
+                    + eventDate.toString());
+
+            Calendar eventCal = Calendar.getInstance();
+            eventCal.setTime(eventDate);
+            return withFormat(eventCal.get(Calendar.YEAR) * 10000
+                    + (eventCal.get(Calendar.MONTH) + 1) * 100
+                    + eventCal.get(Calendar.DAY_OF_MONTH),
+                    format | ContactEvents.FORMAT_FLAG_FALLBACK);
+        } else {
+            Log.e(Constants.TAG, "Event Date String " + eventDateString
+                    + " could NOT be parsed! returning null!");
+
+            return INVALID;
+        }
+    }
+
+    /**
+     * @return true if the string may be parsed by Long.parseLong(), which throws otherwise
+     */
+    private static boolean isSignedNumber(String s) {
+        int length = s.length();
+        int start = length > 1 && (s.charAt(0) == '-' || s.charAt(0) == '+') ? 1 : 0;
+        if (start == length) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            // like Long.parseLong(), also accepts non-ASCII digits
+            if (Character.digit(s.charAt(i), 10) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Try to parse input with SimpleDateFormat
+     *
+     * @param format      SimpleDateFormat
+     * @param setYear1700 When true the age will be not displayed in brackets
+     * @return Date object if successful, otherwise null
+     */
+    private static Date parseStringWithSimpleDateFormat(String input, String format,
+                                                        boolean setYear1700) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+        dateFormat.setTimeZone(TimeZone.getDefault());
+        try {
+            Date parsedDate = dateFormat.parse(input);
+
+            /*
+             * Because no year is defined in address book, set year to 1700
+             * 
+             * When year < 1800, the age will be not displayed in brackets
+             */
+            if (setYear1700) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTime(parsedDate);
+                cal.set(Calendar.YEAR, NO_YEAR);
+                parsedDate = cal.getTime();
+            }
+
+            return parsedDate;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
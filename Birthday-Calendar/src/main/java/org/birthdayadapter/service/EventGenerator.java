@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+
+package org.birthdayadapter.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates the events of chunks of contacts: Expanding their events over the synced years,
+ * rendering the titles and building the values of the events. Large chunks are split into parts
+ * of consecutive contacts, which are generated on a pool with a thread per available core. The
+ * results are stored in the contacts, so they are merged in the order of the contacts.
+ */
+class EventGenerator {
+    // below this number of contacts per thread, the contacts are generated on the calling thread
+    private static final int MIN_CONTACTS_PER_TASK = 32;
+
+    /**
+     * Event of a contact, as read by {@link ContactEventReader}
+     */
+    static class ContactEvent {
+        String displayName;
+        String lookupKey;
+        int type;
+        String label;
+        int year;
+        int month;
+        int day;
+        // calendar of the events, see AccountCalendars
+        long calendarId;
+    }
+
+    /**
+     * Event generated for a year
+     */
+    static class GeneratedEvent {
+        ContentValues values;
+        long hash;
+        // null if the event does not exist yet
+        ExistingEventReader.ExistingEvent existingEvent;
+    }
+
+    /**
+     * Contact with its events and existing events. Generating the contact removes the existing
+     * events that are generated again, the remaining existing events are obsolete.
+     */
+    static class Contact {
+        final long id;
+        final String key;
+        final ArrayList<ContactEvent> events = new ArrayList<>();
+        HashMap<String, ExistingEventReader.ExistingEvent> existingEvents;
+        // events of contacts sorted before this contact, see ExistingEventReader.readChunk()
+        final ArrayList<Long> obsoleteEventIds = new ArrayList<>();
+        final ArrayList<GeneratedEvent> generatedEvents = new ArrayList<>();
+
+        Contact(long id) {
+            this.id = id;
+            this.key = CalendarSyncAdapterService.buildContactKey(id);
+        }
+
+        /**
+         * Adds the current event of the reader
+         */
+        void addEvent(ContactEventReader reader, long calendarId) {
+            ContactEvent event = new ContactEvent();
+            event.displayName = reader.getDisplayName();
+            event.lookupKey = reader.getLookupKey();
+            event.type = reader.getType();
+            event.label = reader.getLabel();
+            // date was parsed when the event was copied into the mirror
+            event.year = reader.getYear();
+            event.month = reader.getMonth();
+            event.day = reader.getDay();
+            event.calendarId = calendarId;
+            events.add(event);
+        }
+    }
+
+    private final Context mContext;
+    private final SyncConfig mConfig;
+    private final EventYears mEventYears;
+    private final String mReminderSignature;
+    private final int mThreadCount;
+    private ExecutorService mExecutor;
+
+    // titles are rendered with a shared builder, so each thread compiles its own titles once per
+    // sync: the calling thread and every thread of the pool
+    private final EventTitles mEventTitles;
+    private final ThreadLocal<EventTitles> mWorkerEventTitles = new ThreadLocal<EventTitles>() {
+        @Override
+        protected EventTitles initialValue() {
+            return new EventTitles(mConfig);
+        }
+    };
+
+    EventGenerator(Context context, SyncConfig config, EventYears eventYears) {
+        this(context, config, eventYears, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadCount maximum number of threads generating the events of a chunk
+     */
+    EventGenerator(Context context, SyncConfig config, EventYears eventYears, int threadCount) {
+        mContext = context;
+        mConfig = config;
+        mEventYears = eventYears;
+        mReminderSignature = config.getReminderSignature();
+        mThreadCount = threadCount;
+        mEventTitles = new EventTitles(config);
+    }
+
+    /**
+     * Generates the events of the given contacts
+     *
+     * @return false if interrupted or generating the events failed on the pool
+     */
+    boolean generate(List<Contact> contacts) {
+        int taskCount = Math.min(mThreadCount, contacts.size() / MIN_CONTACTS_PER_TASK);
+        if (taskCount <= 1) {
+            generate(contacts, mEventTitles);
+            return true;
+        }
+
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(mThreadCount);
+        }
+
+        ArrayList<Callable<Void>> tasks = new ArrayList<>(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            final List<Contact> part = contacts.subList(contacts.size() * i / taskCount,
+                    contacts.size() * (i + 1) / taskCount);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    generate(part, mWorkerEventTitles.get());
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(tasks)) {
+                future.get();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Interrupted while generating events!", e);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(Constants.TAG, "Generating events failed!", e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Stops the threads of the pool
+     */
+    void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void generate(List<Contact> contacts, EventTitles eventTitles) {
+        for (Contact contact : contacts) {
+            for (ContactEvent event : contact.events) {
+                generate(contact, event, eventTitles);
+            }
+        }
+    }
+
+    private void generate(Contact contact, ContactEvent event, EventTitles eventTitles) {
+        String customAppUri = CalendarSyncAdapterService.buildCustomAppUri(event.lookupKey);
+
+        /*
+         * If year < 1800 don't show brackets with age behind name.
+         * 
+         * When no year is defined EventDateParser sets it to 1700
+         * 
+         * Also iCloud for example sets year to 1604 if no year is defined in their user
+         * interface
+         */
+        boolean hasYear = false;
+        if (event.year >= 1800) {
+            hasYear = true;
+        }
+
+        for (int iteratedYear = mEventYears.getStartYear();
+             iteratedYear <= mEventYears.getEndYear(); iteratedYear++) {
+            // calculate age
+            int age = iteratedYear - event.year;
+
+            // if birthday has year and age of this event >= 0, display age in title
+            boolean includeAge = false;
+            if (hasYear && age >= 0) {
+                includeAge = true;
+            }
+
+            String title = eventTitles.generateTitle(event.type, event.label, includeAge,
+                    event.displayName, age);
+
+            if (title != null) {
+                String eventKey = CalendarSyncAdapterService.buildEventKey(event.lookupKey,
+                        event.type, event.label, iteratedYear);
+                long dtstart = mEventYears.getUtcMidnight(iteratedYear, event.month, event.day);
+
+                GeneratedEvent generatedEvent = new GeneratedEvent();
+                generatedEvent.values = CalendarSyncAdapterService.getEventValues(mContext,
+                        event.calendarId, dtstart, title, customAppUri, contact.key, eventKey,
+                        mReminderSignature);
+                generatedEvent.hash = CalendarSyncAdapterService.hashEvent(event.calendarId,
+                        title, dtstart, customAppUri);
+                generatedEvent.existingEvent = contact.existingEvents.remove(eventKey);
+                contact.generatedEvents.add(generatedEvent);
+            } else {
+                Log.d(Constants.TAG, "Title is null -> Not inserting events and reminders!");
+            }
+        }
+    }
+}
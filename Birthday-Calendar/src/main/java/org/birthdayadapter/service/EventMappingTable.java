@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.birthdayadapter.service;
+
+import android.annotation.SuppressLint;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.RemoteException;
+import android.provider.CalendarContract.Events;
+import android.text.TextUtils;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.provider.ProviderHelper;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Rebuilds the EventMappings from the events in the birthday calendar and the account calendars.
+ * <p/>
+ * The mappings are normally maintained by {@link CalendarBatch} together with the calendar. They
+ * are only rebuilt if the calendar changed, an account calendar has been deleted or a batch
+ * failed, i.e., if they may differ from the calendar. The reminder ids of rebuilt mappings are
+ * unknown.
+ */
+@SuppressLint("NewApi")
+class EventMappingTable {
+    private static final int MAX_OPERATIONS = 500;
+
+    private EventMappingTable() {
+    }
+
+    /**
+     * @return false if the calendar could not be read or the mappings could not be written
+     */
+    static boolean rebuild(Context context, ContentResolver contentResolver,
+                           ContentProviderClient calendarClient, AccountCalendars calendars) {
+        Log.d(Constants.TAG, "Rebuilding event mappings from calendar...");
+
+        String[] projection;
+        if (Build.VERSION.SDK_INT >= 16) {
+            projection = new String[]{Events._ID, Events.SYNC_DATA2, Events._SYNC_ID,
+                    Events.TITLE, Events.DTSTART, Events.SYNC_DATA1, Events.CALENDAR_ID,
+                    Events.CUSTOM_APP_URI};
+        } else {
+            projection = new String[]{Events._ID, Events.SYNC_DATA2, Events._SYNC_ID,
+                    Events.TITLE, Events.DTSTART, Events.SYNC_DATA1, Events.CALENDAR_ID};
+        }
+
+        // with additional selection of calendar ids, necessary on Android < 4 to get events only
+        // from birthday calendars
+        Cursor cursor;
+        try {
+            cursor = calendarClient.query(
+                    CalendarSyncAdapterService.getBirthdayAdapterUri(Events.CONTENT_URI),
+                    projection, Events.CALENDAR_ID + " IN ("
+                            + TextUtils.join(",", calendars.getCalendarIds()) + ")", null, null);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Reading events from calendar failed!", e);
+            return false;
+        }
+        if (cursor == null) {
+            return false;
+        }
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+        operationList.add(ContentProviderOperation
+                .newDelete(BirthdayAdapterContract.EventMappings.CONTENT_URI).build());
+
+        try {
+            while (cursor.moveToNext()) {
+                String customAppUri = null;
+                if (Build.VERSION.SDK_INT >= 16) {
+                    customAppUri = cursor.getString(7);
+                }
+
+                // events without keys are mapped, too, the sync deletes them as obsolete
+                ContentValues values = new ContentValues();
+                values.put(BirthdayAdapterContract.EventMappings._ID, cursor.getLong(0));
+                values.put(BirthdayAdapterContract.EventMappings.CONTACT_KEY, cursor.getString(1));
+                values.put(BirthdayAdapterContract.EventMappings.EVENT_KEY, cursor.getString(2));
+                values.put(BirthdayAdapterContract.EventMappings.HASH,
+                        CalendarSyncAdapterService.hashEvent(cursor.getLong(6),
+                                cursor.getString(3), cursor.getLong(4), customAppUri));
+                values.put(BirthdayAdapterContract.EventMappings.REMINDER_SIGNATURE,
+                        cursor.getString(5));
+
+                operationList.add(ContentProviderOperation
+                        .newInsert(BirthdayAdapterContract.EventMappings.CONTENT_URI)
+                        .withValues(values).build());
+                if (operationList.size() >= MAX_OPERATIONS && !apply(contentResolver, operationList)) {
+                    return false;
+                }
+            }
+        } finally {
+            if (!cursor.isClosed())
+                cursor.close();
+        }
+
+        if (!apply(contentResolver, operationList)) {
+            return false;
+        }
+        ProviderHelper.setSyncState(context,
+                BirthdayAdapterContract.SyncState.KEY_MAPPED_CALENDAR_ID,
+                String.valueOf(calendars.getMainCalendarId()));
+        return true;
+    }
+
+    private static boolean apply(ContentResolver contentResolver,
+                                 ArrayList<ContentProviderOperation> operationList) {
+        if (operationList.isEmpty()) {
+            return true;
+        }
+        try {
+            contentResolver.applyBatch(BirthdayAdapterContract.CONTENT_AUTHORITY, operationList);
+            return true;
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Rebuilding event mappings failed!", e);
+            return false;
+        } finally {
+            operationList.clear();
+        }
+    }
+}
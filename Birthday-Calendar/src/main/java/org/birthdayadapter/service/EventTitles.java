@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.provider.ContactsContract;
+
+/**
+ * Title templates of all event types, compiled once per sync from the SyncConfig
+ */
+class EventTitles {
+    private final TitleTemplate mCustomWithAge;
+    private final TitleTemplate mCustomWithoutAge;
+    private final TitleTemplate mAnniversaryWithAge;
+    private final TitleTemplate mAnniversaryWithoutAge;
+    private final TitleTemplate mBirthdayWithAge;
+    private final TitleTemplate mBirthdayWithoutAge;
+    private final TitleTemplate mOtherWithAge;
+    private final TitleTemplate mOtherWithoutAge;
+
+    // reused to render all titles
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    EventTitles(SyncConfig config) {
+        mCustomWithAge = compile(config, ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM,
+                true);
+        mCustomWithoutAge = compile(config, ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM,
+                false);
+        mAnniversaryWithAge = compile(config,
+                ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY, true);
+        mAnniversaryWithoutAge = compile(config,
+                ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY, false);
+        mBirthdayWithAge = compile(config, ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY,
+                true);
+        mBirthdayWithoutAge = compile(config,
+                ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY, false);
+        mOtherWithAge = compile(config, ContactsContract.CommonDataKinds.Event.TYPE_OTHER, true);
+        mOtherWithoutAge = compile(config, ContactsContract.CommonDataKinds.Event.TYPE_OTHER,
+                false);
+    }
+
+    private static TitleTemplate compile(SyncConfig config, int eventType, boolean includeAge) {
+        String format = config.getTitleFormat(eventType, includeAge);
+        if (eventType == ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM) {
+            return new TitleTemplate(format, TitleTemplate.ARG_NAME, TitleTemplate.ARG_LABEL,
+                    TitleTemplate.ARG_AGE);
+        } else {
+            return new TitleTemplate(format, TitleTemplate.ARG_NAME, TitleTemplate.ARG_AGE);
+        }
+    }
+
+    /**
+     * Generates title for events
+     */
+    String generateTitle(int eventType, String eventCustomLabel, boolean includeAge,
+                         String displayName, int age) {
+        String title = null;
+        if (displayName != null) {
+            switch (eventType) {
+                case ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM:
+                    if (eventCustomLabel != null) {
+                        title = (includeAge ? mCustomWithAge : mCustomWithoutAge)
+                                .format(mBuilder, displayName, eventCustomLabel, age);
+                    } else {
+                        title = (includeAge ? mOtherWithAge : mOtherWithoutAge)
+                                .format(mBuilder, displayName, null, age);
+                    }
+                    break;
+                case ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY:
+                    title = (includeAge ? mAnniversaryWithAge : mAnniversaryWithoutAge)
+                            .format(mBuilder, displayName, null, age);
+                    break;
+                case ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY:
+                    title = (includeAge ? mBirthdayWithAge : mBirthdayWithoutAge)
+                            .format(mBuilder, displayName, null, age);
+                    break;
+                default:
+                    // also ContactsContract.CommonDataKinds.Event.TYPE_OTHER
+                    title = (includeAge ? mOtherWithAge : mOtherWithoutAge)
+                            .format(mBuilder, displayName, null, age);
+                    break;
+            }
+        }
+
+        return title;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.text.format.DateUtils;
+
+/**
+ * Start times of the all day events generated for a range of years, computed with a table of the
+ * first days of these years instead of Calendar objects for each event.
+ * <p/>
+ * All day events have to be set in UTC, so an event starts at midnight UTC of its day. Like a
+ * lenient Calendar, February 29 becomes March 1 in years that are not leap years.
+ */
+class EventYears {
+    private static final int[] DAYS_BEFORE_MONTH = new int[]{
+            0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334
+    };
+
+    private final int mStartYear;
+    private final int mEndYear;
+
+    // days since 1970-01-01 of January 1 of each year
+    private final long[] mFirstDays;
+    private final boolean[] mLeapYears;
+
+    EventYears(int startYear, int endYear) {
+        mStartYear = startYear;
+        mEndYear = endYear;
+        mFirstDays = new long[endYear - startYear + 1];
+        mLeapYears = new boolean[endYear - startYear + 1];
+        for (int year = startYear; year <= endYear; year++) {
+            mFirstDays[year - startYear] = EventDateParser.toEpochDay(year, 1, 1);
+            mLeapYears[year - startYear] = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        }
+    }
+
+    int getStartYear() {
+        return mStartYear;
+    }
+
+    int getEndYear() {
+        return mEndYear;
+    }
+
+    /**
+     * @param year  year between start and end year
+     * @param month month 1-12
+     * @param day   day of the month
+     * @return milliseconds of midnight UTC of the day
+     */
+    long getUtcMidnight(int year, int month, int day) {
+        int index = year - mStartYear;
+        int dayOfYear = DAYS_BEFORE_MONTH[month - 1] + day - 1;
+        if (month > 2 && mLeapYears[index]) {
+            dayOfYear++;
+        }
+        return (mFirstDays[index] + dayOfYear) * DateUtils.DAY_IN_MILLIS;
+    }
+}
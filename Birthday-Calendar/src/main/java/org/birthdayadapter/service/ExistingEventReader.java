@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads the existing events of the birthday calendar from their EventMappings chunk by chunk of
+ * the contacts read by {@link ContactEventReader}, which are sorted by contact id, thus by their
+ * contact key, too. The calendar provider is not queried.
+ * <p/>
+ * The sync writes the EventMappings while reading them. A cursor over the whole table would be
+ * refilled by running its query again and skipping the rows already read, so rows would be
+ * skipped or read twice. Instead, every chunk is read with its own query on the range of contact
+ * keys following the previous chunk, and the cursor is closed before the chunk is written. Only
+ * the mappings of contacts in earlier ranges are written meanwhile.
+ */
+class ExistingEventReader {
+    private static final String[] PROJECTION = new String[]{
+            BirthdayAdapterContract.EventMappings._ID,
+            BirthdayAdapterContract.EventMappings.CONTACT_KEY,
+            BirthdayAdapterContract.EventMappings.EVENT_KEY,
+            BirthdayAdapterContract.EventMappings.HASH,
+            BirthdayAdapterContract.EventMappings.REMINDER_SIGNATURE,
+            BirthdayAdapterContract.EventMappings.REMINDER_IDS
+    };
+
+    /**
+     * Event that already exists in the birthday calendar
+     */
+    static class ExistingEvent {
+        long id;
+        long hash;
+        String reminders;
+        String reminderIds;
+    }
+
+    private final ContentResolver mContentResolver;
+    // null to read all events
+    private final String mContactKeySelection;
+    // events up to this contact key have been read, null before the first chunk
+    private String mReadContactKey;
+    // remaining events up to this id have been read
+    private long mReadRemainingId = -1;
+
+    /**
+     * @param contactIds only read events of these contacts, null to read all events
+     */
+    ExistingEventReader(ContentResolver contentResolver, Collection<Long> contactIds) {
+        mContentResolver = contentResolver;
+        if (contactIds != null) {
+            mContactKeySelection = CalendarSyncAdapterService.buildContactKeySelection(
+                    BirthdayAdapterContract.EventMappings.CONTACT_KEY, contactIds);
+        } else {
+            mContactKeySelection = null;
+        }
+    }
+
+    /**
+     * Reads the existing events of the given contacts, which follow the contacts of the previous
+     * chunk, into their existingEvents, mapped by their stable key. Events of contacts sorted
+     * between the contacts are not generated anymore. They, and events without a key or with a
+     * duplicated key, are added to obsoleteEventIds of the following contact.
+     *
+     * @return false if the events could not be read
+     */
+    boolean readChunk(List<EventGenerator.Contact> contacts) {
+        if (contacts.isEmpty()) {
+            return true;
+        }
+        String lastContactKey = contacts.get(contacts.size() - 1).key;
+
+        ArrayList<String> where = new ArrayList<>();
+        ArrayList<String> whereArgs = new ArrayList<>();
+        if (mReadContactKey != null) {
+            where.add(BirthdayAdapterContract.EventMappings.CONTACT_KEY + " > ?");
+            whereArgs.add(mReadContactKey);
+        }
+        where.add(BirthdayAdapterContract.EventMappings.CONTACT_KEY + " <= ?");
+        whereArgs.add(lastContactKey);
+        if (mContactKeySelection != null) {
+            where.add(mContactKeySelection);
+        }
+
+        Cursor cursor = mContentResolver.query(BirthdayAdapterContract.EventMappings.CONTENT_URI,
+                PROJECTION, TextUtils.join(" AND ", where),
+                whereArgs.toArray(new String[whereArgs.size()]),
+                BirthdayAdapterContract.EventMappings.DEFAULT_SORT);
+        if (cursor == null) {
+            return false;
+        }
+
+        for (EventGenerator.Contact contact : contacts) {
+            contact.existingEvents = new HashMap<>();
+        }
+        try {
+            int index = 0;
+            while (cursor.moveToNext()) {
+                // the last contact key is not exceeded
+                String contactKey = cursor.getString(1);
+                while (contactKey.compareTo(contacts.get(index).key) > 0) {
+                    index++;
+                }
+                EventGenerator.Contact contact = contacts.get(index);
+
+                String eventKey = cursor.getString(2);
+                if (!contactKey.equals(contact.key) || eventKey == null
+                        || contact.existingEvents.containsKey(eventKey)) {
+                    contact.obsoleteEventIds.add(cursor.getLong(0));
+                } else {
+                    ExistingEvent existingEvent = new ExistingEvent();
+                    existingEvent.id = cursor.getLong(0);
+                    existingEvent.hash = cursor.getLong(3);
+                    existingEvent.reminders = cursor.getString(4);
+                    existingEvent.reminderIds = cursor.getString(5);
+                    contact.existingEvents.put(eventKey, existingEvent);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        mReadContactKey = lastContactKey;
+        return true;
+    }
+
+    /**
+     * Adds the next events of contacts following the last chunk, and events without a contact
+     * key, to obsoleteEventIds, up to maxCount events. These are read in the order of their ids,
+     * so deleting the events read before does not change the next result.
+     *
+     * @return number of added events or -1 if the events could not be read
+     */
+    int readRemaining(ArrayList<Long> obsoleteEventIds, int maxCount) {
+        ArrayList<String> where = new ArrayList<>();
+        ArrayList<String> whereArgs = new ArrayList<>();
+        where.add(BirthdayAdapterContract.EventMappings._ID + " > " + mReadRemainingId);
+        if (mReadContactKey != null) {
+            where.add("(" + BirthdayAdapterContract.EventMappings.CONTACT_KEY + " > ? OR "
+                    + BirthdayAdapterContract.EventMappings.CONTACT_KEY + " IS NULL)");
+            whereArgs.add(mReadContactKey);
+        }
+        if (mContactKeySelection != null) {
+            where.add(mContactKeySelection);
+        }
+
+        Cursor cursor = mContentResolver.query(
+                BirthdayAdapterContract.EventMappings.buildLimitUri(maxCount),
+                new String[]{BirthdayAdapterContract.EventMappings._ID},
+                TextUtils.join(" AND ", where), whereArgs.toArray(new String[whereArgs.size()]),
+                BirthdayAdapterContract.EventMappings._ID + " ASC");
+        if (cursor == null) {
+            return -1;
+        }
+
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                mReadRemainingId = cursor.getLong(0);
+                obsoleteEventIds.add(mReadRemainingId);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+}
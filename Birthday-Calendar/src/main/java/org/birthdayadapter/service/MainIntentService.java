@@ -20,9 +20,12 @@
 
 package org.birthdayadapter.service;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
@@ -32,65 +35,223 @@ import org.birthdayadapter.util.Constants;
 import org.birthdayadapter.util.Log;
 import org.birthdayadapter.util.BackgroundStatusHandler;
 
+import java.util.ArrayList;
+
 /**
- * An IntentServices queues incoming Intents and works them one by one.
+ * Works the incoming Intents on two worker threads: Lightweight changes of the calendar, like its
+ * color, are worked one by one on a fast lane, so they never wait behind a sync running on the
+ * sync lane.
+ * <p/>
+ * Sync requests are coalesced: A sync is started after no further request arrived for
+ * SYNC_DELAY_MS, all requests up to then are handled by this one sync. A request arriving while a
+ * sync is running cancels the running sync, which is superseded by the next one. Every request
+ * enables the progress of its messenger once and disables it once its sync has finished.
  */
-public class MainIntentService extends IntentService {
+public class MainIntentService extends Service {
 
     /* extras that can be given by intent */
     public static final String EXTRA_MESSENGER = "messenger";
 
     /* possible actions */
     public static final String ACTION_MANUAL_COMPLETE_SYNC = "MANUAL_SYNC";
+    // syncs only changes, like changed reminders, coalesced with complete syncs
+    public static final String ACTION_SYNC = "SYNC";
     public static final String ACTION_CHANGE_COLOR = "CHANGE_COLOR";
 
-    Messenger mMessenger;
+    /**
+     * Time without further sync requests after which the sync is started
+     */
+    private static final long SYNC_DELAY_MS = 1000;
+
+    private static final int MSG_SYNC = 1;
+    private static final int MSG_CHANGE_COLOR = 2;
 
-    public MainIntentService() {
-        super("BirthdayAdapterMainIntentService");
+    private final Object mLock = new Object();
+    // messengers of the sync requests not yet handled by a finished sync
+    private final ArrayList<Messenger> mSyncMessengers = new ArrayList<>();
+    // thread running the sync, null if no sync is running
+    private Thread mSyncThread;
+    // a pending request needs a complete sync
+    private boolean mCompleteSyncRequested;
+    private boolean mChangingColor;
+    private int mLastStartId;
+
+    private HandlerThread mSyncLaneThread;
+    private HandlerThread mFastLaneThread;
+    private Handler mSyncLane;
+    private Handler mFastLane;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mSyncLaneThread = new HandlerThread("BirthdayAdapterMainIntentService");
+        mSyncLaneThread.start();
+        mFastLaneThread = new HandlerThread("BirthdayAdapterMainIntentServiceFast");
+        mFastLaneThread.start();
+
+        Handler.Callback callback = new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_SYNC:
+                        sync();
+                        break;
+                    case MSG_CHANGE_COLOR:
+                        changeColor((Messenger) msg.obj);
+                        break;
+                    default:
+                        break;
+                }
+                stopIfIdle();
+                return true;
+            }
+        };
+        mSyncLane = new Handler(mSyncLaneThread.getLooper(), callback);
+        mFastLane = new Handler(mFastLaneThread.getLooper(), callback);
+    }
+
+    @Override
+    public void onDestroy() {
+        mSyncLaneThread.quit();
+        mFastLaneThread.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     /**
-     * The IntentService calls this method from the default worker thread with the intent that
-     * started the service. When this method returns, IntentService stops the service, as
-     * appropriate.
+     * Called on the main thread, queues the Intent for its lane
      */
     @Override
-    protected void onHandleIntent(Intent intent) {
-        Bundle extras = intent.getExtras();
-        if (extras == null) {
-            Log.e(Constants.TAG, "Extras bundle is null!");
-            return;
-        }
-
-        if (intent.getAction() == null) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || intent.getAction() == null) {
             Log.e(Constants.TAG, "Intent must contain an action!");
-            return;
-        }
-
-        if (extras.containsKey(EXTRA_MESSENGER)) {
-            mMessenger = (Messenger) extras.get(EXTRA_MESSENGER);
+            synchronized (mLock) {
+                mLastStartId = startId;
+            }
+            stopIfIdle();
+            return START_NOT_STICKY;
         }
 
+        // requests without messenger, e.g., from LocaleChangedReceiver, do not show progress
+        Bundle extras = intent.getExtras();
+        Messenger messenger = extras == null ? null : (Messenger) extras.get(EXTRA_MESSENGER);
         String action = intent.getAction();
 
-        setProgressCircleWithHandler(true);
+        // show progress until the request has been handled
+        setProgressCircleWithHandler(messenger, true);
 
-        // execute action
+        /*
+         * The start id is updated together with queueing the message. Otherwise stopIfIdle() of
+         * a finishing sync could stop the service with this start id before the message is
+         * queued.
+         */
         if (ACTION_CHANGE_COLOR.equals(action)) {
+            synchronized (mLock) {
+                mLastStartId = startId;
+                mFastLane.obtainMessage(MSG_CHANGE_COLOR, messenger).sendToTarget();
+            }
+        } else if (ACTION_MANUAL_COMPLETE_SYNC.equals(action) || ACTION_SYNC.equals(action)) {
+            synchronized (mLock) {
+                mLastStartId = startId;
+                if (ACTION_MANUAL_COMPLETE_SYNC.equals(action)) {
+                    mCompleteSyncRequested = true;
+                }
+                if (messenger != null) {
+                    mSyncMessengers.add(messenger);
+                }
+
+                // restart the delay
+                mSyncLane.removeMessages(MSG_SYNC);
+                mSyncLane.sendEmptyMessageDelayed(MSG_SYNC, SYNC_DELAY_MS);
+
+                if (mSyncThread != null) {
+                    Log.d(Constants.TAG, "Cancelling running sync, superseded by new request...");
+                    mSyncThread.interrupt();
+                }
+            }
+        } else {
+            synchronized (mLock) {
+                mLastStartId = startId;
+            }
+            setProgressCircleWithHandler(messenger, false);
+            stopIfIdle();
+        }
+
+        return START_NOT_STICKY;
+    }
+
+    private void changeColor(Messenger messenger) {
+        synchronized (mLock) {
+            mChangingColor = true;
+        }
+
+        try {
             // update calendar color if enabled
             if (new AccountHelper(this).isAccountActivated()) {
                 CalendarSyncAdapterService.updateCalendarColor(this);
             }
-        } else if (ACTION_MANUAL_COMPLETE_SYNC.equals(action)) {
+        } finally {
+            synchronized (mLock) {
+                mChangingColor = false;
+            }
+        }
+
+        setProgressCircleWithHandler(messenger, false);
+    }
+
+    private void sync() {
+        ArrayList<Messenger> messengers;
+        boolean complete;
+        synchronized (mLock) {
+            messengers = new ArrayList<>(mSyncMessengers);
+            mSyncMessengers.clear();
+            complete = mCompleteSyncRequested;
+            mCompleteSyncRequested = false;
+            mSyncThread = Thread.currentThread();
+        }
+
+        try {
             // perform blocking sync
-            CalendarSyncAdapterService.performSync(this);
+            CalendarSyncAdapterService.performSync(this, complete);
+        } finally {
+            synchronized (mLock) {
+                mSyncThread = null;
+                // clear the interrupt of a superseded sync, it must not affect the next one
+                if (Thread.interrupted() || !mSyncMessengers.isEmpty()) {
+                    // a new request arrived, its sync finishes the progress of these requests
+                    mSyncMessengers.addAll(messengers);
+                    messengers.clear();
+                    mCompleteSyncRequested |= complete;
+                }
+            }
+        }
+
+        for (Messenger messenger : messengers) {
+            setProgressCircleWithHandler(messenger, false);
         }
+    }
 
-        setProgressCircleWithHandler(false);
+    /**
+     * Stops the service if no Intent is queued or worked on. A newer start prevents the stop.
+     */
+    private void stopIfIdle() {
+        int startId;
+        synchronized (mLock) {
+            if (mSyncThread != null || mChangingColor || mSyncLane.hasMessages(MSG_SYNC)
+                    || mFastLane.hasMessages(MSG_CHANGE_COLOR)) {
+                return;
+            }
+            startId = mLastStartId;
+        }
+        stopSelf(startId);
     }
 
-    private void setProgressCircleWithHandler(boolean value) {
+    private void setProgressCircleWithHandler(Messenger messenger, boolean value) {
         Message msg = Message.obtain();
 
         if (value) {
@@ -99,9 +260,9 @@ public class MainIntentService extends IntentService {
             msg.what = BackgroundStatusHandler.BACKGROUND_STATUS_HANDLER_DISABLE;
         }
 
-        if (mMessenger != null) {
+        if (messenger != null) {
             try {
-                mMessenger.send(msg);
+                messenger.send(msg);
             } catch (RemoteException e) {
                 Log.w(Constants.TAG, "Exception sending message, Is handler present?", e);
             }
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+
+package org.birthdayadapter.service;
+
+import android.annotation.SuppressLint;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.CalendarContract.Events;
+import android.provider.CalendarContract.Reminders;
+import android.text.TextUtils;
+
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Updates the reminders of all events after the reminder preferences changed, without generating
+ * the events again. The Reminders rows of every event with an outdated reminder signature are
+ * diffed with the enabled reminders: Reminders that no longer apply are deleted, missing ones are
+ * inserted and the others are kept. The events themselves and their ids stay the same, only their
+ * reminder signature in Events.SYNC_DATA1 is updated.
+ */
+@SuppressLint("NewApi")
+class ReminderUpdater {
+    private static final int MAX_EVENTS_PER_QUERY = 200;
+
+    private static final String[] MAPPING_PROJECTION = new String[]{
+            BirthdayAdapterContract.EventMappings._ID,
+            BirthdayAdapterContract.EventMappings.CONTACT_KEY,
+            BirthdayAdapterContract.EventMappings.EVENT_KEY,
+            BirthdayAdapterContract.EventMappings.HASH
+    };
+
+    private static final String[] EVENT_PROJECTION = new String[]{
+            Events._ID,
+            Events.SYNC_DATA1
+    };
+
+    private static final String[] REMINDER_PROJECTION = new String[]{
+            Reminders._ID,
+            Reminders.EVENT_ID,
+            Reminders.MINUTES,
+            Reminders.METHOD
+    };
+
+    /**
+     * Existing reminder of an event
+     */
+    private static class Reminder {
+        long id;
+        int minutes;
+        int method;
+    }
+
+    private ReminderUpdater() {
+    }
+
+    /**
+     * @return false if the events could not be read, the batch failed or the update has been
+     * interrupted
+     */
+    static boolean update(Context context, ContentResolver contentResolver,
+                          ContentProviderClient calendarClient, SyncConfig config) {
+        int[] reminderMinutes = config.getReminderMinutes();
+        String reminderSignature = config.getReminderSignature();
+
+        ArrayList<Long> eventIds = queryOutdatedEvents(contentResolver, reminderSignature);
+        if (eventIds == null) {
+            Log.e(Constants.TAG, "Unable to get event mappings! Cursor returns null!");
+            return false;
+        }
+        Log.d(Constants.TAG, "Updating reminders of " + eventIds.size() + " events...");
+
+        CalendarBatch batch = new CalendarBatch(context, contentResolver, calendarClient);
+        try {
+            for (int start = 0; start < eventIds.size(); start += MAX_EVENTS_PER_QUERY) {
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.d(Constants.TAG, "Reminder update has been cancelled!");
+                    return false;
+                }
+
+                List<Long> chunk = eventIds.subList(start,
+                        Math.min(start + MAX_EVENTS_PER_QUERY, eventIds.size()));
+                if (!addReminderOperations(batch, contentResolver, calendarClient, chunk,
+                        reminderMinutes, reminderSignature)) {
+                    return false;
+                }
+            }
+
+            batch.apply();
+        } finally {
+            // stops the writer thread if the update has been aborted
+            batch.cancel();
+        }
+
+        return !batch.hasFailed();
+    }
+
+    /**
+     * @return ids of the events whose reminder signature differs from the given one
+     */
+    private static ArrayList<Long> queryOutdatedEvents(ContentResolver contentResolver,
+                                                       String reminderSignature) {
+        Cursor cursor = contentResolver.query(BirthdayAdapterContract.EventMappings.CONTENT_URI,
+                new String[]{BirthdayAdapterContract.EventMappings._ID},
+                BirthdayAdapterContract.EventMappings.REMINDER_SIGNATURE + " IS NULL OR "
+                        + BirthdayAdapterContract.EventMappings.REMINDER_SIGNATURE + " != ?",
+                new String[]{reminderSignature}, BirthdayAdapterContract.EventMappings._ID);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            ArrayList<Long> eventIds = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                eventIds.add(cursor.getLong(0));
+            }
+            return eventIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds the operations to update the reminders of the given events
+     *
+     * @return false if the events or their reminders could not be read
+     */
+    private static boolean addReminderOperations(CalendarBatch batch,
+                                                 ContentResolver contentResolver,
+                                                 ContentProviderClient calendarClient,
+                                                 List<Long> eventIds, int[] reminderMinutes,
+                                                 String reminderSignature) {
+        String eventIdList = TextUtils.join(",", eventIds);
+
+        HashMap<Long, ContentValues> mappings = new HashMap<>();
+        Cursor cursor = contentResolver.query(BirthdayAdapterContract.EventMappings.CONTENT_URI,
+                MAPPING_PROJECTION,
+                BirthdayAdapterContract.EventMappings._ID + " IN (" + eventIdList + ")", null,
+                null);
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get event mappings! Cursor returns null!");
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(BirthdayAdapterContract.EventMappings._ID, cursor.getLong(0));
+                values.put(BirthdayAdapterContract.EventMappings.CONTACT_KEY, cursor.getString(1));
+                values.put(BirthdayAdapterContract.EventMappings.EVENT_KEY, cursor.getString(2));
+                values.put(BirthdayAdapterContract.EventMappings.HASH, cursor.getLong(3));
+                mappings.put(cursor.getLong(0), values);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Uri eventsUri = CalendarSyncAdapterService.getBirthdayAdapterUri(Events.CONTENT_URI);
+        HashMap<Long, String> eventSignatures = new HashMap<>();
+        try {
+            cursor = calendarClient.query(eventsUri, EVENT_PROJECTION,
+                    Events._ID + " IN (" + eventIdList + ")", null, null);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Unable to get events!", e);
+            return false;
+        }
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get events! Cursor returns null!");
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                eventSignatures.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        HashMap<Long, ArrayList<Reminder>> reminders = new HashMap<>();
+        try {
+            cursor = calendarClient.query(
+                    CalendarSyncAdapterService.getBirthdayAdapterUri(Reminders.CONTENT_URI),
+                    REMINDER_PROJECTION, Reminders.EVENT_ID + " IN (" + eventIdList + ")", null,
+                    null);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Unable to get reminders!", e);
+            return false;
+        }
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get reminders! Cursor returns null!");
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                Reminder reminder = new Reminder();
+                reminder.id = cursor.getLong(0);
+                reminder.minutes = cursor.getInt(2);
+                reminder.method = cursor.getInt(3);
+
+                ArrayList<Reminder> eventReminders = reminders.get(cursor.getLong(1));
+                if (eventReminders == null) {
+                    eventReminders = new ArrayList<>();
+                    reminders.put(cursor.getLong(1), eventReminders);
+                }
+                eventReminders.add(reminder);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Uri remindersUri = CalendarSyncAdapterService.getBirthdayAdapterUri(Reminders.CONTENT_URI);
+        for (long eventId : eventIds) {
+            ContentValues mappingValues = mappings.get(eventId);
+            if (mappingValues == null) {
+                // mapping has been deleted meanwhile
+                continue;
+            }
+
+            // enabled reminders that do not exist yet
+            ArrayList<Integer> missingMinutes = new ArrayList<>();
+            for (int minutes : reminderMinutes) {
+                if (minutes != Constants.DISABLED_REMINDER) {
+                    missingMinutes.add(minutes);
+                }
+            }
+
+            StringBuilder keptReminderIds = new StringBuilder();
+            ArrayList<Reminder> eventReminders = reminders.get(eventId);
+            if (eventReminders != null) {
+                for (Reminder reminder : eventReminders) {
+                    int index = reminder.method == Reminders.METHOD_ALERT
+                            ? missingMinutes.indexOf(reminder.minutes) : -1;
+                    if (index != -1) {
+                        missingMinutes.remove(index);
+                        if (keptReminderIds.length() > 0) {
+                            keptReminderIds.append(',');
+                        }
+                        keptReminderIds.append(reminder.id);
+                    } else {
+                        batch.add(ContentProviderOperation.newDelete(
+                                ContentUris.withAppendedId(remindersUri, reminder.id)).build());
+                    }
+                }
+            }
+
+            // the signature of the event may already be up to date if only its mapping is not,
+            // e.g. after an aborted update
+            if (!reminderSignature.equals(eventSignatures.get(eventId))) {
+                ContentValues values = new ContentValues();
+                values.put(Events.SYNC_DATA1, reminderSignature);
+                batch.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(eventsUri, eventId))
+                        .withValues(values).build(), values);
+            }
+
+            int reminderIndex = batch.size();
+            for (int minutes : missingMinutes) {
+                ContentValues values = new ContentValues();
+                values.put(Reminders.EVENT_ID, eventId);
+                values.put(Reminders.MINUTES, minutes);
+                values.put(Reminders.METHOD, Reminders.METHOD_ALERT);
+                batch.add(ContentProviderOperation.newInsert(remindersUri)
+                        .withValues(values).build(), values);
+            }
+
+            mappingValues.put(BirthdayAdapterContract.EventMappings.REMINDER_SIGNATURE,
+                    reminderSignature);
+            mappingValues.put(BirthdayAdapterContract.EventMappings.REMINDER_IDS,
+                    keptReminderIds.toString());
+            batch.addMapping(mappingValues, eventId, -1, reminderIndex, missingMinutes.size());
+            batch.applyIfFull();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.ContactsContract;
+
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.PreferencesHelper;
+
+import java.util.Locale;
+
+/**
+ * Immutable snapshot of the preferences used by the sync, read once instead of going through
+ * PreferencesHelper for every event. The sync uses the same values from start to end, even if
+ * the preferences change in the meantime.
+ * <p/>
+ * The snapshot is cached across syncs and invalidated by a listener on the preferences. The
+ * default titles are localized, so it is also read again if the default locale changed.
+ */
+final class SyncConfig {
+    private static final int[] EVENT_TYPES = new int[]{
+            ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM,
+            ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY,
+            ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY,
+            ContactsContract.CommonDataKinds.Event.TYPE_OTHER
+    };
+
+    private static SyncConfig sCached;
+    // incremented on every change, a snapshot read during a change is not cached
+    private static int sGeneration;
+
+    // SharedPreferences only keeps weak references to its listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener sListener;
+
+    private final Locale mLocale;
+    private final int mColor;
+    private final int[] mReminderMinutes;
+    private final String mReminderSignature;
+    private final boolean mPreferddSlashMM;
+    private final boolean mAccountCalendars;
+    // with age and without age for each of EVENT_TYPES
+    private final String[] mTitleFormats;
+
+    private SyncConfig(Context context, Locale locale) {
+        this(locale, PreferencesHelper.getColor(context),
+                PreferencesHelper.getAllReminderMinutes(context),
+                PreferencesHelper.getPreferddSlashMM(context),
+                PreferencesHelper.getAccountCalendars(context), readTitleFormats(context));
+    }
+
+    /**
+     * Snapshot of the given values instead of the preferences, used by tests
+     *
+     * @param titleFormats with age and without age for each event type, in the order custom,
+     *                     anniversary, birthday and other
+     */
+    SyncConfig(Locale locale, int color, int[] reminderMinutes, boolean preferddSlashMM,
+               boolean accountCalendars, String[] titleFormats) {
+        mLocale = locale;
+        mColor = color;
+        mReminderMinutes = reminderMinutes;
+        mReminderSignature = CalendarSyncAdapterService.buildReminderSignature(mReminderMinutes);
+        mPreferddSlashMM = preferddSlashMM;
+        mAccountCalendars = accountCalendars;
+        mTitleFormats = titleFormats;
+    }
+
+    private static String[] readTitleFormats(Context context) {
+        String[] titleFormats = new String[EVENT_TYPES.length * 2];
+        for (int i = 0; i < EVENT_TYPES.length; i++) {
+            titleFormats[i * 2] = PreferencesHelper.getLabel(context, EVENT_TYPES[i], true);
+            titleFormats[i * 2 + 1] = PreferencesHelper.getLabel(context, EVENT_TYPES[i], false);
+        }
+        return titleFormats;
+    }
+
+    /**
+     * @return the cached snapshot, or a new one if the preferences or the locale changed
+     */
+    static SyncConfig get(Context context) {
+        Locale locale = Locale.getDefault();
+        int generation;
+        synchronized (SyncConfig.class) {
+            if (sListener == null) {
+                sListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                          String key) {
+                        invalidate();
+                    }
+                };
+                context.getApplicationContext().getSharedPreferences(Constants.PREFS_NAME,
+                        Context.MODE_PRIVATE).registerOnSharedPreferenceChangeListener(sListener);
+            }
+            if (sCached != null && sCached.mLocale.equals(locale)) {
+                return sCached;
+            }
+            generation = sGeneration;
+        }
+
+        SyncConfig config = new SyncConfig(context, locale);
+        synchronized (SyncConfig.class) {
+            if (generation == sGeneration) {
+                sCached = config;
+            }
+        }
+        return config;
+    }
+
+    private static synchronized void invalidate() {
+        sCached = null;
+        sGeneration++;
+    }
+
+    int getColor() {
+        return mColor;
+    }
+
+    /**
+     * @return minutes of the three reminders, Constants.DISABLED_REMINDER if disabled
+     */
+    int[] getReminderMinutes() {
+        return mReminderMinutes.clone();
+    }
+
+    /**
+     * @return signature of the enabled reminders, see Events.SYNC_DATA1
+     */
+    String getReminderSignature() {
+        return mReminderSignature;
+    }
+
+    boolean getPreferddSlashMM() {
+        return mPreferddSlashMM;
+    }
+
+    /**
+     * @return true if the events of each account are synced into a separate calendar, see
+     * AccountCalendars
+     */
+    boolean getAccountCalendars() {
+        return mAccountCalendars;
+    }
+
+    /**
+     * @return title format of the event type as passed to String.format, see
+     * PreferencesHelper.getLabel()
+     */
+    String getTitleFormat(int eventType, boolean includeAge) {
+        int index = EVENT_TYPES.length - 1;
+        for (int i = 0; i < EVENT_TYPES.length; i++) {
+            if (EVENT_TYPES[i] == eventType) {
+                index = i;
+                break;
+            }
+        }
+        return mTitleFormats[includeAge ? index * 2 : index * 2 + 1];
+    }
+
+    /**
+     * Appends all values that change the dates or calendars of the generated events, used by
+     * SyncFingerprint.
+     * Changed reminders and titles are updated without generating all events again, see
+     * ReminderUpdater and appendTitleFingerprintInput().
+     */
+    void appendFingerprintInput(StringBuilder input) {
+        input.append(mPreferddSlashMM).append('\n');
+        input.append(mAccountCalendars).append('\n');
+    }
+
+    /**
+     * Appends all values that change only the titles of the generated events, used by
+     * SyncFingerprint
+     */
+    void appendTitleFingerprintInput(StringBuilder input) {
+        input.append(mLocale).append('\n');
+        for (String titleFormat : mTitleFormats) {
+            input.append(titleFormat).append('\n');
+        }
+    }
+}
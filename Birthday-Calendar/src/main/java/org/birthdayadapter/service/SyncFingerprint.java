@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.birthdayadapter.service;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Cheap fingerprints of the inputs of a sync. If both equal the fingerprints of the last successful
+ * sync, the sync has nothing to do.
+ * <p/>
+ * The config fingerprint covers everything that changes the events of all contacts: current year,
+ * calendar and the preferences in SyncConfig, but not the reminders, see ReminderUpdater, the
+ * titles and the account blacklist. The titles fingerprint covers the title preferences and the
+ * locale. The blacklist is stored as is, a change only resyncs the contacts of the toggled
+ * accounts. The contacts fingerprint covers the number of raw contacts per account and the ids,
+ * contact ids and versions of all raw contacts.
+ */
+class SyncFingerprint {
+    /**
+     * Result of decide()
+     */
+    static final int SYNC_NOTHING = 0;
+    static final int SYNC_CHANGES = 1;
+    static final int SYNC_COMPLETE = 2;
+
+    private SyncFingerprint() {
+    }
+
+    /**
+     * Decides how much a sync has to do, before reading any contacts or events.
+     *
+     * @param complete                  a complete sync was requested
+     * @param configFingerprint         see computeConfig()
+     * @param syncedConfigFingerprint   config fingerprint of the last complete sync or null
+     * @param syncedBlacklistState      blacklist of the last successful sync or null
+     * @param contactsFingerprint       see computeContacts(), null if unknown
+     * @param syncedContactsFingerprint contacts fingerprint of the last successful sync or null
+     * @param inputsChanged             reminders, titles, blacklist or accounts changed
+     * @return SYNC_NOTHING, SYNC_CHANGES or SYNC_COMPLETE
+     */
+    static int decide(boolean complete, String configFingerprint, String syncedConfigFingerprint,
+                      String syncedBlacklistState, String contactsFingerprint,
+                      String syncedContactsFingerprint, boolean inputsChanged) {
+        if (!configFingerprint.equals(syncedConfigFingerprint) || syncedBlacklistState == null) {
+            // events of all contacts may change
+            return SYNC_COMPLETE;
+        } else if (complete) {
+            return SYNC_COMPLETE;
+        } else if (!inputsChanged && contactsFingerprint != null
+                && contactsFingerprint.equals(syncedContactsFingerprint)) {
+            return SYNC_NOTHING;
+        }
+        return SYNC_CHANGES;
+    }
+
+    static String computeConfig(SyncConfig config, long calendarId, int currYear) {
+        StringBuilder input = new StringBuilder();
+        input.append(currYear).append('\n');
+        input.append(calendarId).append('\n');
+        config.appendFingerprintInput(input);
+        return Long.toHexString(CalendarSyncAdapterService.hash(input.toString()));
+    }
+
+    /**
+     * @return the blacklist in a stable form, which can be read again with parseBlacklist()
+     */
+    static String computeBlacklist(HashSet<Account> blacklist) {
+        // sorted, HashSet iteration order is not stable
+        TreeSet<String> accounts = new TreeSet<>();
+        for (Account account : blacklist) {
+            accounts.add(account.type + '\t' + account.name);
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (String account : accounts) {
+            result.append(account).append('\n');
+        }
+        return result.toString();
+    }
+
+    static HashSet<Account> parseBlacklist(String blacklist) {
+        HashSet<Account> accounts = new HashSet<>();
+        for (String account : TextUtils.split(blacklist, "\n")) {
+            int separator = account.indexOf('\t');
+            if (separator != -1) {
+                accounts.add(new Account(account.substring(separator + 1),
+                        account.substring(0, separator)));
+            }
+        }
+        return accounts;
+    }
+
+    static String computeTitles(SyncConfig config) {
+        StringBuilder input = new StringBuilder();
+        config.appendTitleFingerprintInput(input);
+        return Long.toHexString(CalendarSyncAdapterService.hash(input.toString()));
+    }
+
+    /**
+     * @return fingerprint of the raw contacts or null if the contacts could not be read
+     */
+    static String computeContacts(ContentResolver contentResolver) {
+        Cursor cursor = contentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
+                new String[]{ContactsContract.RawContacts._ID,
+                        ContactsContract.RawContacts.CONTACT_ID,
+                        ContactsContract.RawContacts.VERSION,
+                        ContactsContract.RawContacts.ACCOUNT_TYPE,
+                        ContactsContract.RawContacts.ACCOUNT_NAME},
+                ContactsContract.RawContacts.DELETED + " = 0", null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        // number of raw contacts per account
+        TreeMap<String, Integer> counts = new TreeMap<>();
+        long rows = 0;
+        try {
+            while (cursor.moveToNext()) {
+                // order independent combination of all raw contacts
+                rows += mix(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+
+                String account = cursor.getString(3) + '\u0000' + cursor.getString(4);
+                Integer count = counts.get(account);
+                counts.put(account, count == null ? 1 : count + 1);
+            }
+        } finally {
+            if (!cursor.isClosed())
+                cursor.close();
+        }
+
+        StringBuilder input = new StringBuilder();
+        input.append(rows).append('\n');
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            input.append(entry.getKey()).append('\u0000').append(entry.getValue()).append('\n');
+        }
+        return Long.toHexString(CalendarSyncAdapterService.hash(input.toString()));
+    }
+
+    private static long mix(long rawContactId, long contactId, long version) {
+        long h = rawContactId * 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 29) ^ contactId) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 32) ^ version) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
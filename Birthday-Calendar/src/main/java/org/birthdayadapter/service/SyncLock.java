@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+
+package org.birthdayadapter.service;
+
+import android.content.Context;
+
+import org.birthdayadapter.util.Constants;
+import org.birthdayadapter.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock held during a sync. The sync adapter runs in the :calendar process, while syncs requested
+ * by MainIntentService run in the main process. Both write the same calendar and EventMappings,
+ * so only one sync may run at a time.
+ * <p/>
+ * A lock on a file in the app storage excludes the other process. File locks are held by the
+ * whole process, so threads of the same process are excluded by an additional lock.
+ */
+class SyncLock {
+    private static final String FILE_NAME = "sync.lock";
+
+    private static final ReentrantLock sProcessLock = new ReentrantLock();
+
+    private final RandomAccessFile mFile;
+    private final FileLock mLock;
+
+    private SyncLock(RandomAccessFile file, FileLock lock) {
+        mFile = file;
+        mLock = lock;
+    }
+
+    /**
+     * Waits until no other sync is running and acquires the lock
+     *
+     * @return null if the lock file could not be locked or the thread has been interrupted
+     * while waiting
+     */
+    static SyncLock acquire(Context context) {
+        sProcessLock.lock();
+        return lockFile(context, true);
+    }
+
+    /**
+     * Acquires the lock if no other sync is running
+     *
+     * @return null if another sync is running or the lock file could not be locked
+     */
+    static SyncLock tryAcquire(Context context) {
+        if (!sProcessLock.tryLock()) {
+            return null;
+        }
+        return lockFile(context, false);
+    }
+
+    /**
+     * Locks the lock file, while holding the process lock. Releases the process lock if the file
+     * is not locked.
+     */
+    private static SyncLock lockFile(Context context, boolean wait) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME), "rw");
+            FileLock lock = wait ? file.getChannel().lock() : file.getChannel().tryLock();
+            if (lock != null) {
+                return new SyncLock(file, lock);
+            }
+        } catch (ClosedByInterruptException e) {
+            // the waiting sync has been superseded, not an error
+            Log.d(Constants.TAG, "Interrupted while waiting for sync lock file");
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Unable to lock sync lock file!", e);
+        }
+
+        close(file);
+        sProcessLock.unlock();
+        return null;
+    }
+
+    void release() {
+        try {
+            mLock.release();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Unable to release sync lock file!", e);
+        }
+        close(mFile);
+        sProcessLock.unlock();
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Unable to close sync lock file!", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Title template compiled from a format string into literal text and placeholders, to render
+ * titles without parsing the format string for every event.
+ * <p/>
+ * Supports the format specifiers used by the title preferences: %s and %d with or without an
+ * explicit argument index, e.g., %1$s, as well as %% and %n. Like String.format, %d is rendered
+ * with the digits of the default locale. If the format string contains anything else, e.g.,
+ * flags or a width, or does not fit the arguments, the title is rendered by String.format, so
+ * the result is always the same as String.format(format, args).
+ */
+class TitleTemplate {
+    /**
+     * Kinds of the arguments passed to String.format
+     */
+    static final int ARG_NAME = 0;
+    static final int ARG_LABEL = 1;
+    static final int ARG_AGE = 2;
+
+    private final String mFormat;
+    private final int[] mArgKinds;
+
+    // literal text, or null for a placeholder of the argument at the same index in mArgIndices
+    private final String[] mLiterals;
+    private final int[] mArgIndices;
+    private final boolean[] mDecimals;
+
+    private final char mZeroDigit;
+
+    /**
+     * @param format   format string as passed to String.format
+     * @param argKinds kinds of the arguments in the order they are passed to String.format
+     */
+    TitleTemplate(String format, int... argKinds) {
+        mFormat = format;
+        mArgKinds = argKinds;
+
+        ArrayList<String> literals = new ArrayList<>();
+        ArrayList<Integer> argIndices = new ArrayList<>();
+        ArrayList<Boolean> decimals = new ArrayList<>();
+        if (!compile(format, argKinds, literals, argIndices, decimals)) {
+            mLiterals = null;
+            mArgIndices = null;
+            mDecimals = null;
+        } else {
+            mLiterals = literals.toArray(new String[literals.size()]);
+            mArgIndices = new int[argIndices.size()];
+            mDecimals = new boolean[decimals.size()];
+            for (int i = 0; i < mArgIndices.length; i++) {
+                mArgIndices[i] = argIndices.get(i);
+                mDecimals[i] = decimals.get(i);
+            }
+        }
+
+        // String.format uses the default locale when it is called, the templates are compiled
+        // once per sync
+        mZeroDigit = new DecimalFormatSymbols(Locale.getDefault()).getZeroDigit();
+    }
+
+    /**
+     * Splits the format string into literals and placeholders
+     *
+     * @return false if the format string uses anything not supported
+     */
+    private static boolean compile(String format, int[] argKinds, ArrayList<String> literals,
+                                   ArrayList<Integer> argIndices, ArrayList<Boolean> decimals) {
+        StringBuilder literal = new StringBuilder();
+        int ordinaryIndex = 0;
+        int length = format.length();
+        int i = 0;
+        while (i < length) {
+            char c = format.charAt(i++);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i == length) {
+                return false;
+            }
+
+            // optional explicit argument index, e.g., 1$
+            int argIndex = -1;
+            int digitsStart = i;
+            int value = 0;
+            while (i < length && format.charAt(i) >= '0' && format.charAt(i) <= '9'
+                    && i - digitsStart < 3) {
+                value = value * 10 + (format.charAt(i) - '0');
+                i++;
+            }
+            if (i > digitsStart) {
+                // %0$s is treated like an ordinary index by Formatter, digits without $ are a
+                // width or flag
+                if (i == length || format.charAt(i) != '$' || value == 0) {
+                    return false;
+                }
+                argIndex = value - 1;
+                i++;
+                if (i == length) {
+                    return false;
+                }
+            }
+
+            char conversion = format.charAt(i++);
+            switch (conversion) {
+                case '%':
+                    if (argIndex != -1) {
+                        return false;
+                    }
+                    literal.append('%');
+                    continue;
+                case 'n':
+                    if (argIndex != -1) {
+                        return false;
+                    }
+                    literal.append(System.getProperty("line.separator"));
+                    continue;
+                case 's':
+                case 'd':
+                    break;
+                default:
+                    return false;
+            }
+
+            if (argIndex == -1) {
+                argIndex = ordinaryIndex++;
+            }
+            if (argIndex >= argKinds.length) {
+                // MissingFormatArgumentException
+                return false;
+            }
+            boolean decimal = conversion == 'd';
+            if (decimal && argKinds[argIndex] != ARG_AGE) {
+                // IllegalFormatConversionException
+                return false;
+            }
+
+            if (literal.length() > 0) {
+                literals.add(literal.toString());
+                argIndices.add(-1);
+                decimals.add(false);
+                literal.setLength(0);
+            }
+            literals.add(null);
+            argIndices.add(argIndex);
+            decimals.add(decimal);
+        }
+        if (literal.length() > 0) {
+            literals.add(literal.toString());
+            argIndices.add(-1);
+            decimals.add(false);
+        }
+        return true;
+    }
+
+    /**
+     * Renders the title into the given builder, which is cleared first
+     *
+     * @return the title, the same as String.format(format, args) with the arguments in the order
+     * of the argument kinds
+     */
+    String format(StringBuilder builder, String name, String label, int age) {
+        if (mLiterals == null) {
+            return String.format(mFormat, getArgs(name, label, age));
+        }
+
+        builder.setLength(0);
+        for (int i = 0; i < mLiterals.length; i++) {
+            if (mLiterals[i] != null) {
+                builder.append(mLiterals[i]);
+                continue;
+            }
+
+            switch (mArgKinds[mArgIndices[i]]) {
+                case ARG_NAME:
+                    builder.append(name);
+                    break;
+                case ARG_LABEL:
+                    builder.append(label);
+                    break;
+                default:
+                    if (mDecimals[i]) {
+                        appendDecimal(builder, age);
+                    } else {
+                        builder.append(age);
+                    }
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Appends the number like %d: with the zero digit of the locale, without grouping
+     */
+    private void appendDecimal(StringBuilder builder, int value) {
+        if (value < 0) {
+            builder.append('-');
+        }
+        int start = builder.length();
+        builder.append(Math.abs((long) value));
+        if (mZeroDigit != '0') {
+            for (int i = start; i < builder.length(); i++) {
+                builder.setCharAt(i, (char) (builder.charAt(i) - '0' + mZeroDigit));
+            }
+        }
+    }
+
+    private Object[] getArgs(String name, String label, int age) {
+        Object[] args = new Object[mArgKinds.length];
+        for (int i = 0; i < mArgKinds.length; i++) {
+            switch (mArgKinds[i]) {
+                case ARG_NAME:
+                    args[i] = name;
+                    break;
+                case ARG_LABEL:
+                    args[i] = label;
+                    break;
+                default:
+                    args[i] = age;
+                    break;
+            }
+        }
+        return args;
+    }
+}
@@ -93,7 +93,7 @@ public class AccountListFragment extends ListFragment implements
         if (blacklist != null) {
             ProviderHelper.setAccountBlacklist(getActivity(), blacklist);
             mActivity.mySharedPreferenceChangeListener.startServiceAction(
-                    MainIntentService.ACTION_MANUAL_COMPLETE_SYNC);
+                    MainIntentService.ACTION_SYNC);
         }
     }
 
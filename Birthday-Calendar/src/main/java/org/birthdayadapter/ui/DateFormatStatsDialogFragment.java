@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.ui;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.content.DialogInterface.OnClickListener;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.DialogFragment;
+
+import org.birthdayadapter.R;
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.birthdayadapter.provider.ProviderHelper;
+
+/**
+ * Shows the date formats of the synchronized events per account type, to find accounts with dates
+ * that are slow to parse or not parseable at all
+ */
+public class DateFormatStatsDialogFragment extends DialogFragment {
+
+    /**
+     * Creates new instance of this dialog fragment
+     */
+    public static DateFormatStatsDialogFragment newInstance() {
+        return new DateFormatStatsDialogFragment();
+    }
+
+    /**
+     * Creates dialog
+     */
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        AlertDialog.Builder alert = new AlertDialog.Builder(getActivity());
+        alert.setTitle(R.string.date_format_stats_dialog_title);
+        alert.setMessage(buildMessage());
+        alert.setCancelable(true);
+        alert.setIcon(android.R.drawable.ic_dialog_info);
+
+        alert.setNegativeButton(R.string.date_format_stats_dialog_close_button, new OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                dismiss();
+            }
+        });
+        return alert.create();
+    }
+
+    /**
+     * Lists the formats of each account type, sorted by the number of events
+     */
+    private String buildMessage() {
+        StringBuilder message = new StringBuilder();
+        Cursor cursor = ProviderHelper.getDateFormatStatsCursor(getActivity());
+        try {
+            String lastAccountType = null;
+            while (cursor != null && cursor.moveToNext()) {
+                String accountType = cursor.isNull(0)
+                        ? getString(R.string.date_format_stats_dialog_local_account)
+                        : cursor.getString(0);
+                if (!accountType.equals(lastAccountType)) {
+                    if (lastAccountType != null) {
+                        message.append('\n');
+                    }
+                    message.append(accountType).append('\n');
+                    lastAccountType = accountType;
+                }
+
+                message.append("• ").append(getString(R.string.date_format_stats_dialog_count,
+                        getFormatName(cursor.getInt(1)), cursor.getInt(2))).append('\n');
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed())
+                cursor.close();
+        }
+
+        if (message.length() == 0) {
+            return getString(R.string.date_format_stats_dialog_empty);
+        }
+        return message.toString();
+    }
+
+    private String getFormatName(int format) {
+        String pattern = BirthdayAdapterContract.ContactEvents.getFormatPattern(format);
+        if (pattern == null) {
+            return getString(R.string.date_format_stats_dialog_unparseable);
+        }
+        if ((format & BirthdayAdapterContract.ContactEvents.FORMAT_FLAG_FALLBACK) != 0) {
+            return getString(R.string.date_format_stats_dialog_slow, pattern);
+        }
+        return pattern;
+    }
+
+}
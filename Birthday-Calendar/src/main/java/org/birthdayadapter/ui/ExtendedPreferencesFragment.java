@@ -73,6 +73,17 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
                 return false;
             }
         });
+
+        Preference dateFormatStats = findPreference(getString(R.string.pref_date_format_stats_key));
+        dateFormatStats.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                DateFormatStatsDialogFragment dialog = DateFormatStatsDialogFragment.newInstance();
+                dialog.show(mActivity.getSupportFragmentManager(), "dateFormatStatsDialog");
+
+                return false;
+            }
+        });
     }
 
     @Override
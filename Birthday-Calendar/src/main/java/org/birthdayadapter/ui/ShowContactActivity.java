@@ -32,7 +32,7 @@ import android.provider.CalendarContract;
 import android.provider.ContactsContract.QuickContact;
 
 /*
- * Uri is built in CalendarSyncAdapterService.insertEvent() and looks like Uri
+ * Uri is built in CalendarSyncAdapterService.getEventValues() and looks like Uri
  * contactLookupUri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_LOOKUP_URI,
  * lookupKey);
  * 
@@ -31,6 +31,18 @@ import android.os.Handler;
 import android.os.Messenger;
 
 public class MySharedPreferenceChangeListener implements OnSharedPreferenceChangeListener {
+    private static final int[] TITLE_KEYS = new int[]{
+            R.string.pref_title_enable_key,
+            R.string.pref_title_birthday_without_age_key,
+            R.string.pref_title_birthday_with_age_key,
+            R.string.pref_title_anniversary_without_age_key,
+            R.string.pref_title_anniversary_with_age_key,
+            R.string.pref_title_other_without_age_key,
+            R.string.pref_title_other_with_age_key,
+            R.string.pref_title_custom_without_age_key,
+            R.string.pref_title_custom_with_age_key
+    };
+
     private Context context;
     private Handler handler;
 
@@ -45,12 +57,29 @@ public class MySharedPreferenceChangeListener implements OnSharedPreferenceChang
         if (context.getString(R.string.pref_color_key).equals(key)) {
             // set new color
             startServiceAction(MainIntentService.ACTION_CHANGE_COLOR);
+        } else if (key != null
+                && (key.startsWith(context.getString(R.string.pref_reminder_enable_key))
+                || key.startsWith(context.getString(R.string.pref_reminder_time_key)))) {
+            // only update reminders, the events stay the same
+            startServiceAction(MainIntentService.ACTION_SYNC);
+        } else if (isTitleKey(key)) {
+            // only update titles, the other values of the events stay the same
+            startServiceAction(MainIntentService.ACTION_SYNC);
         } else {
-            // resync all events
+            // resync all events, also if all preferences were cleared (key is null)
             startServiceAction(MainIntentService.ACTION_MANUAL_COMPLETE_SYNC);
         }
     }
 
+    private boolean isTitleKey(String key) {
+        for (int keyId : TITLE_KEYS) {
+            if (context.getString(keyId).equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Start service with action, while executing, show progress
      */
@@ -154,4 +154,11 @@ public class PreferencesHelper {
                 Boolean.parseBoolean(context.getString(R.string.pref_prefer_dd_slash_mm_def)));
     }
 
+    public static boolean getAccountCalendars(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getBoolean(context.getString(R.string.pref_account_calendars_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_account_calendars_def)));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.TransactionTooLargeException;
+import android.provider.CalendarContract.Events;
+import android.provider.CalendarContract.Reminders;
+
+import org.birthdayadapter.BuildConfig;
+import org.birthdayadapter.provider.BirthdayAdapterContract;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Applies batches to a fake calendar provider client, which rejects batches of more than
+ * MAX_OPERATIONS operations like a too large binder transaction. Checks that the batch is split
+ * between groups of operations and that back references of split batches point to the inserted
+ * events of their group.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CalendarBatchTest {
+    private static final int MAX_OPERATIONS = 7;
+
+    private static final Uri EVENTS_URI = CalendarSyncAdapterService.getBirthdayAdapterUri(
+            Events.CONTENT_URI);
+    private static final Uri REMINDERS_URI = CalendarSyncAdapterService.getBirthdayAdapterUri(
+            Reminders.CONTENT_URI);
+
+    // id of the existing event of a group, which is not inserted
+    private static final long EXISTING_EVENT_ID = 100000;
+
+    /**
+     * Row inserted or updated by the fake client
+     */
+    private static class Row {
+        Uri uri;
+        ContentValues values;
+        // number of the applyBatch() call that wrote the row
+        int call;
+    }
+
+    private ContentProviderClient mCalendarClient;
+    private ContentResolver mContentResolver;
+    private final ArrayList<Row> mRows = new ArrayList<>();
+    private final ArrayList<Integer> mCallSizes = new ArrayList<>();
+    private final ArrayList<ContentProviderOperation> mMappingOperations = new ArrayList<>();
+    private long mNextId = 1;
+
+    @Before
+    public void setUp() throws Exception {
+        mCalendarClient = mock(ContentProviderClient.class);
+        when(mCalendarClient.applyBatch(Matchers.<ArrayList<ContentProviderOperation>>any()))
+                .thenAnswer(new Answer<ContentProviderResult[]>() {
+                    @Override
+                    public ContentProviderResult[] answer(InvocationOnMock invocation)
+                            throws Exception {
+                        @SuppressWarnings("unchecked")
+                        ArrayList<ContentProviderOperation> operations =
+                                (ArrayList<ContentProviderOperation>) invocation.getArguments()[0];
+                        return applyCalendarBatch(operations);
+                    }
+                });
+
+        mContentResolver = mock(ContentResolver.class);
+        when(mContentResolver.applyBatch(Matchers.eq(BirthdayAdapterContract.CONTENT_AUTHORITY),
+                Matchers.<ArrayList<ContentProviderOperation>>any()))
+                .thenAnswer(new Answer<ContentProviderResult[]>() {
+                    @Override
+                    public ContentProviderResult[] answer(InvocationOnMock invocation) {
+                        @SuppressWarnings("unchecked")
+                        ArrayList<ContentProviderOperation> operations =
+                                (ArrayList<ContentProviderOperation>) invocation.getArguments()[1];
+                        mMappingOperations.addAll(operations);
+                        return new ContentProviderResult[operations.size()];
+                    }
+                });
+    }
+
+    /**
+     * Applies the operations like the calendar provider, resolving their back references
+     */
+    private ContentProviderResult[] applyCalendarBatch(
+            ArrayList<ContentProviderOperation> operations) throws Exception {
+        if (operations.size() > MAX_OPERATIONS) {
+            throw new TransactionTooLargeException();
+        }
+
+        int call = mCallSizes.size();
+        mCallSizes.add(operations.size());
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        for (int i = 0; i < operations.size(); i++) {
+            ContentProviderOperation operation = operations.get(i);
+            Row row = new Row();
+            row.values = operation.resolveValueBackReferences(results, i);
+            row.call = call;
+            if (operation.isInsert()) {
+                long id = mNextId++;
+                row.uri = ContentUris.withAppendedId(operation.getUri(), id);
+                results[i] = new ContentProviderResult(row.uri);
+            } else {
+                row.uri = operation.getUri();
+                results[i] = new ContentProviderResult(1);
+            }
+            mRows.add(row);
+        }
+        return results;
+    }
+
+    @Test
+    public void apply_splitsTooLargeBatchBetweenGroups() {
+        // large enough to apply all groups in one batch, unless it is split
+        CalendarBatch batch = new CalendarBatch(RuntimeEnvironment.application, mContentResolver,
+                mCalendarClient, Integer.MAX_VALUE);
+
+        int groupCount = 60;
+        int operationCount = 0;
+        for (int group = 0; group < groupCount; group++) {
+            operationCount += addGroup(batch, group);
+            batch.applyIfFull();
+        }
+        batch.apply();
+
+        assertFalse(batch.hasFailed());
+        assertEquals(operationCount, mRows.size());
+        assertTrue(mCallSizes.size() > 1);
+        for (int callSize : mCallSizes) {
+            assertTrue(callSize <= MAX_OPERATIONS);
+        }
+
+        HashMap<Integer, ContentValues> mappings = new HashMap<>();
+        for (ContentProviderOperation operation : mMappingOperations) {
+            ContentValues values = operation.resolveValueBackReferences(
+                    new ContentProviderResult[0], 0);
+            mappings.put(Integer.parseInt(values.getAsString(
+                    BirthdayAdapterContract.EventMappings.EVENT_KEY)), values);
+        }
+        assertEquals(groupCount, mappings.size());
+
+        for (int group = 0; group < groupCount; group++) {
+            ArrayList<Row> rows = getRows(group);
+            assertEquals(getGroupSize(group), rows.size());
+
+            // the operations of a group are applied together, in their order
+            Row eventRow = rows.get(0);
+            for (Row row : rows) {
+                assertEquals(eventRow.call, row.call);
+            }
+
+            long eventId = group % 2 == 0 ? ContentUris.parseId(eventRow.uri)
+                    : EXISTING_EVENT_ID + group;
+            StringBuilder reminderIds = new StringBuilder();
+            for (Row reminderRow : rows.subList(1, rows.size())) {
+                assertEquals(REMINDERS_URI.getPath(), reminderRow.uri.getPath().substring(0,
+                        reminderRow.uri.getPath().lastIndexOf('/')));
+                // the back reference points at the event of this group
+                assertEquals(eventId, (long) reminderRow.values.getAsLong(Reminders.EVENT_ID));
+                if (reminderIds.length() > 0) {
+                    reminderIds.append(',');
+                }
+                reminderIds.append(ContentUris.parseId(reminderRow.uri));
+            }
+
+            ContentValues mapping = mappings.get(group);
+            assertNotNull(mapping);
+            assertEquals(eventId, (long) mapping.getAsLong(
+                    BirthdayAdapterContract.EventMappings._ID));
+            assertEquals(reminderIds.toString(), mapping.getAsString(
+                    BirthdayAdapterContract.EventMappings.REMINDER_IDS));
+        }
+    }
+
+    @Test
+    public void apply_failsIfGroupIsTooLarge() {
+        CalendarBatch batch = new CalendarBatch(RuntimeEnvironment.application, mContentResolver,
+                mCalendarClient, Integer.MAX_VALUE);
+
+        addGroup(batch, 0);
+        batch.applyIfFull();
+        // cannot be split
+        for (int i = 0; i <= MAX_OPERATIONS; i++) {
+            batch.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(EVENTS_URI,
+                    EXISTING_EVENT_ID + i)).withValue(Events.SYNC_DATA1, "").build());
+        }
+        batch.applyIfFull();
+        batch.apply();
+
+        assertTrue(batch.hasFailed());
+        assertTrue(mMappingOperations.isEmpty());
+    }
+
+    /**
+     * Number of reminders of a group
+     */
+    private static int getReminderCount(int group) {
+        return group % 4;
+    }
+
+    private static int getGroupSize(int group) {
+        return 1 + getReminderCount(group);
+    }
+
+    /**
+     * Adds the operations of a new event with reminders referencing it for even groups, or of an
+     * updated existing event and its new reminders for odd groups, and its mapping, like the sync
+     *
+     * @return number of added operations
+     */
+    private static int addGroup(CalendarBatch batch, int group) {
+        ContentValues values = new ContentValues();
+        values.put(Events.TITLE, "Event " + group);
+        values.put(Events._SYNC_ID, Integer.toString(group));
+
+        int eventIndex = -1;
+        if (group % 2 == 0) {
+            eventIndex = batch.size();
+            batch.add(ContentProviderOperation.newInsert(EVENTS_URI).withValues(values).build(),
+                    values);
+        } else {
+            batch.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(EVENTS_URI,
+                    EXISTING_EVENT_ID + group)).withValues(values).build(), values);
+        }
+
+        int reminderIndex = batch.size();
+        for (int i = 0; i < getReminderCount(group); i++) {
+            ContentValues reminderValues = new ContentValues();
+            reminderValues.put(Reminders.MINUTES, group * 10 + i);
+            reminderValues.put(Reminders.METHOD, Reminders.METHOD_ALERT);
+            if (eventIndex != -1) {
+                batch.addWithBackReference(REMINDERS_URI, reminderValues, Reminders.EVENT_ID,
+                        eventIndex);
+            } else {
+                reminderValues.put(Reminders.EVENT_ID, EXISTING_EVENT_ID + group);
+                batch.add(ContentProviderOperation.newInsert(REMINDERS_URI)
+                        .withValues(reminderValues).build(), reminderValues);
+            }
+        }
+
+        ContentValues mappingValues = new ContentValues();
+        mappingValues.put(BirthdayAdapterContract.EventMappings.EVENT_KEY,
+                Integer.toString(group));
+        batch.addMapping(mappingValues, EXISTING_EVENT_ID + group, eventIndex, reminderIndex,
+                getReminderCount(group));
+        return getGroupSize(group);
+    }
+
+    /**
+     * @return the event row of the group followed by its reminder rows
+     */
+    private ArrayList<Row> getRows(int group) {
+        ArrayList<Row> rows = new ArrayList<>();
+        for (Row row : mRows) {
+            Integer minutes = row.values.getAsInteger(Reminders.MINUTES);
+            if (Integer.toString(group).equals(row.values.getAsString(Events._SYNC_ID))) {
+                rows.add(0, row);
+            } else if (minutes != null && minutes / 10 == group) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
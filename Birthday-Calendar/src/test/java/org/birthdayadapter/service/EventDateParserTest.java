@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Differential test of EventDateParser against the cascade of SimpleDateFormats that parsed the
+ * contact event dates before, for structured and random strings in several time zones and with
+ * both dd/MM preferences.
+ */
+public class EventDateParserTest {
+    private static final String[] TIME_ZONES = new String[]{
+            "UTC",
+            "Europe/Berlin",
+            "America/New_York",
+            // DST starts at midnight
+            "America/Sao_Paulo",
+            "Asia/Tehran",
+            // skipped 2011-12-30
+            "Pacific/Apia",
+            // skipped 1994-12-31
+            "Pacific/Kiritimati"
+    };
+
+    private static final int[] YEARS = new int[]{
+            1, 1599, 1600, 1700, 1899, 1970, 1994, 2000, 2011, 9999
+    };
+
+    private static final String[] SPECIAL_STRINGS = new String[]{
+            "", " ", "-", "--", "---", ".", "/", "+", "+0", "-0", "0", "00000000", "19900101",
+            "19901301", "1990-01-01", " 1990-01-01", "1990-01-01 ", "1990-01-01T00:00:00",
+            "1990-1-1", "1990--01-01", "1990-01", "1990-01-01-01", "99999-01-01", "10000-01-01",
+            "--01-01", "--02-29", "--12-31", "--13-01", "--1-1", "--01", "--01-01-01",
+            "---01-01", "01.02.1990", "1990.02.01", "1.2.1990", "01.02", "01/02/1990",
+            "01/02", "1/2", "13/13", "01/02/03/04", "1990/01-01", "01-02/1990", "a1990-01-01",
+            "abc", "١٩٩٠-٠١-٠١", "1990–01–01",
+            "1234567890123", "-1234567890123", "+1234567890123", "9223372036854775807",
+            "9223372036854775808", "-9223372036854775808", "0000-00-00", "2011-12-30",
+            "1994-12-31", "30.12.2011", "12/30/2011", "30/12/2011", "31.12.1994"
+    };
+
+    // timestamps around skipped days and DST changes
+    private static final long[] TIMESTAMPS = new long[]{
+            0L, -1L, 1L, 86399999L, 86400000L, -86400000L, 1325239200000L, 1325152800000L,
+            788918400000L, 788832000000L, 1508032800000L, 1508036400000L, 951782400000L
+    };
+
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void parse_equalsCascade_structuredStrings() {
+        ArrayList<String> inputs = new ArrayList<>();
+        for (String s : SPECIAL_STRINGS) {
+            inputs.add(s);
+        }
+        for (long timestamp : TIMESTAMPS) {
+            inputs.add(Long.toString(timestamp));
+            inputs.add(Long.toString(timestamp * 1000));
+        }
+        for (int year : YEARS) {
+            for (int month = 0; month <= 13; month++) {
+                for (int day = 0; day <= 32; day++) {
+                    String y = String.format(Locale.US, "%04d", year);
+                    String m = String.format(Locale.US, "%02d", month);
+                    String d = String.format(Locale.US, "%02d", day);
+                    inputs.add(y + "-" + m + "-" + d);
+                    inputs.add(year + "-" + month + "-" + day);
+                    inputs.add(y + m + d);
+                    inputs.add(d + "." + m + "." + y);
+                    inputs.add(d + "/" + m + "/" + y);
+                    inputs.add(m + "/" + d + "/" + year);
+                }
+            }
+        }
+        for (int month = 0; month <= 13; month++) {
+            for (int day = 0; day <= 32; day++) {
+                inputs.add(String.format(Locale.US, "--%02d-%02d", month, day));
+                inputs.add(month + "/" + day);
+                inputs.add(String.format(Locale.US, "%02d/%02d", day, month));
+            }
+        }
+
+        assertEqualsCascade(inputs);
+    }
+
+    @Test
+    public void parse_equalsCascade_randomStrings() {
+        Random random = new Random(42);
+        String alphabet = "0123456789-./ +a";
+        ArrayList<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            int length = random.nextInt(13);
+            StringBuilder s = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                // mostly digits, like real dates
+                if (random.nextInt(3) == 0) {
+                    s.append(alphabet.charAt(10 + random.nextInt(alphabet.length() - 10)));
+                } else {
+                    s.append(alphabet.charAt(random.nextInt(10)));
+                }
+            }
+            inputs.add(s.toString());
+        }
+
+        assertEqualsCascade(inputs);
+    }
+
+    /**
+     * The fallback alone must give the same results as the cascade, also for strings of known
+     * shapes
+     */
+    @Test
+    public void parseWithSimpleDateFormats_equalsCascade() {
+        String[] inputs = new String[]{
+                "1990-01-01", "1990-13-32", "--02-29", "19900101", "788918400000",
+                "01.02.1990", "01/02/1990", "01/02", " 1990-01-01", "1990-01-01T00:00"
+        };
+        for (String timeZone : TIME_ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+            for (boolean preferddSlashMM : new boolean[]{false, true}) {
+                for (String input : inputs) {
+                    assertEquals(timeZone + " " + preferddSlashMM + " \"" + input + "\"",
+                            parseWithCascade(input, preferddSlashMM),
+                            EventDateParser.getDate(EventDateParser.parseWithSimpleDateFormats(
+                                    input, preferddSlashMM)));
+                }
+            }
+        }
+    }
+
+    private static void assertEqualsCascade(ArrayList<String> inputs) {
+        for (String timeZone : TIME_ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+            for (boolean preferddSlashMM : new boolean[]{false, true}) {
+                for (String input : inputs) {
+                    assertEquals(timeZone + " " + preferddSlashMM + " \"" + input + "\"",
+                            parseWithCascade(input, preferddSlashMM),
+                            parse(input, preferddSlashMM));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses like EventDateCache: the known shapes first, then the fallback
+     */
+    private static int parse(String input, boolean preferddSlashMM) {
+        long result = EventDateParser.parseKnownShape(input, preferddSlashMM,
+                TimeZone.getDefault());
+        if (result == EventDateParser.INVALID) {
+            result = EventDateParser.parseWithSimpleDateFormats(input, preferddSlashMM);
+        }
+        return EventDateParser.getDate(result);
+    }
+
+    /**
+     * The cascade used by the sync before EventDateParser
+     *
+     * @return packed date like EventDateParser or EventDateParser.INVALID
+     */
+    private static int parseWithCascade(String eventDateString, boolean preferddSlashMM) {
+        Date eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyy-MM-dd", false);
+        if (eventDate == null) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "--MM-dd", true);
+        }
+        if (eventDate == null && eventDateString.length() == 8) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyyMMdd", false);
+        }
+        if (eventDate == null) {
+            try {
+                eventDate = new Date(Long.parseLong(eventDateString));
+            } catch (NumberFormatException e) {
+                // try next format
+            }
+        }
+        if (eventDate == null) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd.MM.yyyy", false);
+        }
+        if (eventDate == null) {
+            eventDate = parseStringWithSimpleDateFormat(eventDateString, "yyyy.MM.dd", false);
+        }
+        if (preferddSlashMM) {
+            if (eventDate == null) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd/MM/yyyy", false);
+            }
+            if (eventDate == null) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "dd/MM", true);
+            }
+        } else {
+            if (eventDate == null) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "MM/dd/yyyy", false);
+            }
+            if (eventDate == null) {
+                eventDate = parseStringWithSimpleDateFormat(eventDateString, "MM/dd", true);
+            }
+        }
+
+        if (eventDate == null) {
+            return EventDateParser.INVALID;
+        }
+        // as the mirror stored the date
+        Calendar eventCal = Calendar.getInstance();
+        eventCal.setTime(eventDate);
+        return eventCal.get(Calendar.YEAR) * 10000 + (eventCal.get(Calendar.MONTH) + 1) * 100
+                + eventCal.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private static Date parseStringWithSimpleDateFormat(String input, String format,
+                                                        boolean setYear1700) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+        dateFormat.setTimeZone(TimeZone.getDefault());
+        try {
+            Date parsedDate = dateFormat.parse(input);
+            if (setYear1700) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTime(parsedDate);
+                cal.set(Calendar.YEAR, 1700);
+                parsedDate = cal.getTime();
+            }
+            return parsedDate;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
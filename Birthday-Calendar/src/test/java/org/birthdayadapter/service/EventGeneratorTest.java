@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.provider.ContactsContract;
+
+import org.birthdayadapter.BuildConfig;
+import org.birthdayadapter.util.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Generates the events of synthetic contacts on one and on several threads. The benchmark prints
+ * the time to generate the events of a large address book for 1 to N threads.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EventGeneratorTest {
+    // see CalendarSyncAdapterService
+    private static final int CONTACTS_PER_CHUNK = 256;
+
+    private static final int BENCHMARK_CONTACTS = 20000;
+
+    private static final int[] EVENT_TYPES = new int[]{
+            ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM,
+            ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY,
+            ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY,
+            ContactsContract.CommonDataKinds.Event.TYPE_OTHER
+    };
+
+    private SyncConfig mConfig;
+    private EventYears mEventYears;
+    private ArrayList<EventGenerator> mGenerators = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mConfig = new SyncConfig(Locale.US, 0,
+                new int[]{0, 1440, Constants.DISABLED_REMINDER}, false, false,
+                new String[]{
+                        "%1$s: %2$s (%3$d)", "%1$s: %2$s",
+                        "%1$s: Anniversary (%2$d)", "%1$s: Anniversary",
+                        "%1$s: Birthday (%2$d)", "%1$s: Birthday",
+                        "%1$s: Other Event (%2$d)", "%1$s: Other Event"
+                });
+        mEventYears = new EventYears(2013, 2021);
+    }
+
+    @After
+    public void tearDown() {
+        for (EventGenerator generator : mGenerators) {
+            generator.shutdown();
+        }
+    }
+
+    @Test
+    public void generate_parallelEqualsSingleThreaded() {
+        ArrayList<EventGenerator.Contact> expected = buildContacts(2000);
+        ArrayList<EventGenerator.Contact> actual = buildContacts(2000);
+
+        assertTrue(newGenerator(1).generate(expected));
+        assertTrue(newGenerator(4).generate(actual));
+
+        for (int i = 0; i < expected.size(); i++) {
+            List<EventGenerator.GeneratedEvent> expectedEvents = expected.get(i).generatedEvents;
+            List<EventGenerator.GeneratedEvent> actualEvents = actual.get(i).generatedEvents;
+            assertEquals(expected.get(i).events.size() * 9, expectedEvents.size());
+            assertEquals(expectedEvents.size(), actualEvents.size());
+            for (int j = 0; j < expectedEvents.size(); j++) {
+                assertEquals(expectedEvents.get(j).values, actualEvents.get(j).values);
+                assertEquals(expectedEvents.get(j).hash, actualEvents.get(j).hash);
+            }
+        }
+    }
+
+    @Test
+    public void generate_failedTaskReturnsFalse() {
+        ArrayList<EventGenerator.Contact> contacts = buildContacts(CONTACTS_PER_CHUNK);
+        // fails while generating the events of this contact on the pool
+        contacts.get(CONTACTS_PER_CHUNK / 2).existingEvents = null;
+
+        assertFalse(newGenerator(4).generate(contacts));
+    }
+
+    /**
+     * Generates the events of a large address book in chunks like the sync, with 1 to N threads
+     */
+    @Test
+    public void generate_benchmark() {
+        ArrayList<EventGenerator.Contact> contacts = buildContacts(BENCHMARK_CONTACTS);
+
+        int maxThreadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ArrayList<Integer> threadCounts = new ArrayList<>();
+        for (int threadCount = 1; threadCount < maxThreadCount; threadCount *= 2) {
+            threadCounts.add(threadCount);
+        }
+        threadCounts.add(maxThreadCount);
+
+        // warm up
+        generateInChunks(newGenerator(maxThreadCount), contacts);
+
+        long singleThreadedMillis = 0;
+        for (int threadCount : threadCounts) {
+            EventGenerator generator = newGenerator(threadCount);
+            long start = System.nanoTime();
+            int eventCount = generateInChunks(generator, contacts);
+            long millis = (System.nanoTime() - start) / 1000000;
+            if (threadCount == 1) {
+                singleThreadedMillis = millis;
+            }
+
+            System.out.println(String.format(Locale.US,
+                    "EventGenerator: %d contacts, %d events, %d threads: %d ms, speedup %.2f",
+                    contacts.size(), eventCount, threadCount, millis,
+                    (double) singleThreadedMillis / Math.max(1, millis)));
+        }
+    }
+
+    private EventGenerator newGenerator(int threadCount) {
+        EventGenerator generator = new EventGenerator(RuntimeEnvironment.application, mConfig,
+                mEventYears, threadCount);
+        mGenerators.add(generator);
+        return generator;
+    }
+
+    /**
+     * @return number of generated events
+     */
+    private static int generateInChunks(EventGenerator generator,
+                                        ArrayList<EventGenerator.Contact> contacts) {
+        int eventCount = 0;
+        for (int start = 0; start < contacts.size(); start += CONTACTS_PER_CHUNK) {
+            List<EventGenerator.Contact> chunk = contacts.subList(start,
+                    Math.min(start + CONTACTS_PER_CHUNK, contacts.size()));
+            assertTrue(generator.generate(chunk));
+
+            // the sync drops the generated events after writing them
+            for (EventGenerator.Contact contact : chunk) {
+                eventCount += contact.generatedEvents.size();
+                contact.generatedEvents.clear();
+            }
+        }
+        return eventCount;
+    }
+
+    /**
+     * @return contacts with one to three events of random types and dates, with and without year
+     */
+    private static ArrayList<EventGenerator.Contact> buildContacts(int count) {
+        Random random = new Random(count);
+        ArrayList<EventGenerator.Contact> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            EventGenerator.Contact contact = new EventGenerator.Contact(i + 1);
+            contact.existingEvents = new HashMap<>();
+
+            int eventCount = 1 + random.nextInt(3);
+            for (int j = 0; j < eventCount; j++) {
+                EventGenerator.ContactEvent event = new EventGenerator.ContactEvent();
+                event.displayName = "Contact " + i;
+                event.lookupKey = "0r" + i + "-" + Long.toHexString(random.nextLong());
+                event.type = EVENT_TYPES[random.nextInt(EVENT_TYPES.length)];
+                if (event.type == ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM) {
+                    event.label = "Label " + j;
+                }
+                event.year = random.nextInt(4) == 0
+                        ? EventDateParser.NO_YEAR : 1920 + random.nextInt(100);
+                event.month = 1 + random.nextInt(12);
+                event.day = 1 + random.nextInt(28);
+                event.calendarId = 1;
+                contact.events.add(event);
+            }
+            contacts.add(contact);
+        }
+        return contacts;
+    }
+}
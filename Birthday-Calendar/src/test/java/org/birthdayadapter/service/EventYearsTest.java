@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the start times of EventYears with the Calendar objects that were used before for each
+ * event and year, in time zones with DST at midnight and skipped days, and checks that computing
+ * them does not allocate.
+ */
+public class EventYearsTest {
+    private static final String[] TIME_ZONES = new String[]{
+            "UTC",
+            "Europe/Berlin",
+            "America/New_York",
+            // DST starts at midnight
+            "America/Sao_Paulo",
+            "Asia/Tehran",
+            // DST of 30 minutes
+            "Australia/Lord_Howe",
+            // skipped 2011-12-30
+            "Pacific/Apia",
+            // skipped 1994-12-31
+            "Pacific/Kiritimati"
+    };
+
+    private static final int[] BIRTH_YEARS = new int[]{
+            EventDateParser.NO_YEAR, 1900, 1904, 1970, 1984, 1994, 2000, 2011, 2012
+    };
+
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void getUtcMidnight_equalsCalendar() {
+        for (String timeZone : TIME_ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+
+            // includes the years of the skipped days
+            EventYears eventYears = new EventYears(1990, 2030);
+            for (int birthYear : BIRTH_YEARS) {
+                for (int month = 1; month <= 12; month++) {
+                    for (int day = 1; day <= 31; day++) {
+                        Date birthDate = getBirthDate(birthYear, month, day);
+                        if (birthDate == null) {
+                            continue;
+                        }
+
+                        for (int year = eventYears.getStartYear(); year <= eventYears.getEndYear();
+                             year++) {
+                            assertEquals(timeZone + " " + birthYear + "-" + month + "-" + day
+                                            + " in " + year,
+                                    getUtcMidnightWithCalendar(birthDate, year),
+                                    eventYears.getUtcMidnight(year, month, day));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void getUtcMidnight_february29() {
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        EventYears eventYears = new EventYears(2019, 2021);
+
+        // February 29 in leap years, March 1 otherwise
+        assertEquals(getUtcMidnight(2019, Calendar.MARCH, 1),
+                eventYears.getUtcMidnight(2019, 2, 29));
+        assertEquals(getUtcMidnight(2020, Calendar.FEBRUARY, 29),
+                eventYears.getUtcMidnight(2020, 2, 29));
+        assertEquals(getUtcMidnight(2021, Calendar.MARCH, 1),
+                eventYears.getUtcMidnight(2021, 2, 29));
+        assertEquals(getUtcMidnight(2020, Calendar.MARCH, 1),
+                eventYears.getUtcMidnight(2020, 3, 1));
+        assertEquals(getUtcMidnight(2021, Calendar.DECEMBER, 31),
+                eventYears.getUtcMidnight(2021, 12, 31));
+    }
+
+    @Test
+    public void getUtcMidnight_doesNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean =
+                (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        EventYears eventYears = new EventYears(2015, 2023);
+        // warm up, the first calls may load classes
+        long sum = expandAll(eventYears);
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        sum += expandAll(eventYears);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // a few bytes are tolerated for the measurement itself, Calendars allocated kilobytes
+        assertTrue("allocated " + allocated + " bytes, " + sum, allocated < 1024);
+    }
+
+    /**
+     * Expands every day of the year over all years, like the sync expands the contact events
+     */
+    private static long expandAll(EventYears eventYears) {
+        long sum = 0;
+        for (int month = 1; month <= 12; month++) {
+            for (int day = 1; day <= 31; day++) {
+                for (int year = eventYears.getStartYear(); year <= eventYears.getEndYear();
+                     year++) {
+                    sum += eventYears.getUtcMidnight(year, month, day);
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the date as the sync created it from the mirrored date, null if the date is not
+     * produced by EventDateParser, i.e., invalid or skipped in the default time zone
+     */
+    private static Date getBirthDate(int year, int month, int day) {
+        Calendar eventCal = Calendar.getInstance();
+        eventCal.clear();
+        eventCal.set(year, month - 1, day);
+        Date eventDate = eventCal.getTime();
+        if (eventCal.get(Calendar.YEAR) != year || eventCal.get(Calendar.MONTH) != month - 1
+                || eventCal.get(Calendar.DAY_OF_MONTH) != day) {
+            return null;
+        }
+        return eventDate;
+    }
+
+    /**
+     * Start time of an event as computed by the sync before EventYears
+     */
+    private static long getUtcMidnightWithCalendar(Date eventDate, int year) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(eventDate);
+        cal.set(Calendar.YEAR, year);
+        cal.set(Calendar.HOUR, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return cal.getTimeInMillis();
+    }
+
+    private static long getUtcMidnight(int year, int month, int day) {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        cal.clear();
+        cal.set(year, month, day);
+        return cal.getTimeInMillis();
+    }
+}
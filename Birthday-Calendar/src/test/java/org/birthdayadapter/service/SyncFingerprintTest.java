@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of Birthday Adapter.
+ *
+ * Birthday Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birthday Adapter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birthday Adapter.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.birthdayadapter.service;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract;
+
+import org.birthdayadapter.BuildConfig;
+import org.birthdayadapter.util.Constants;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the decision to skip a sync if nothing changed, and the fingerprints it is based on. The
+ * benchmark prints the time a sync of an unchanged large address book takes until it is skipped.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SyncFingerprintTest {
+    private static final int BENCHMARK_RAW_CONTACTS = 20000;
+
+    private static final String CONFIG = "config";
+    private static final String CONTACTS = "contacts";
+    private static final String BLACKLIST = "";
+
+    /**
+     * Raw contacts returned by the content resolver, as id, contact id, version, account type and
+     * account name
+     */
+    private final ArrayList<Object[]> mRawContacts = new ArrayList<>();
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        mContentResolver = mock(ContentResolver.class);
+        when(mContentResolver.query(Matchers.eq(ContactsContract.RawContacts.CONTENT_URI),
+                Matchers.<String[]>any(), Matchers.anyString(), Matchers.<String[]>any(),
+                Matchers.anyString())).thenAnswer(new Answer<Cursor>() {
+            @Override
+            public Cursor answer(InvocationOnMock invocation) {
+                MatrixCursor cursor = new MatrixCursor(
+                        (String[]) invocation.getArguments()[1], mRawContacts.size());
+                for (Object[] rawContact : mRawContacts) {
+                    cursor.addRow(rawContact);
+                }
+                return cursor;
+            }
+        });
+    }
+
+    @Test
+    public void decide_unchangedSkipsSync() {
+        assertEquals(SyncFingerprint.SYNC_NOTHING, SyncFingerprint.decide(false, CONFIG, CONFIG,
+                BLACKLIST, CONTACTS, CONTACTS, false));
+    }
+
+    @Test
+    public void decide_changedContactsSyncsChanges() {
+        assertEquals(SyncFingerprint.SYNC_CHANGES, SyncFingerprint.decide(false, CONFIG, CONFIG,
+                BLACKLIST, "changed", CONTACTS, false));
+        // not synced successfully before
+        assertEquals(SyncFingerprint.SYNC_CHANGES, SyncFingerprint.decide(false, CONFIG, CONFIG,
+                BLACKLIST, CONTACTS, null, false));
+        // contacts could not be read
+        assertEquals(SyncFingerprint.SYNC_CHANGES, SyncFingerprint.decide(false, CONFIG, CONFIG,
+                BLACKLIST, null, null, false));
+    }
+
+    @Test
+    public void decide_changedInputsSyncChanges() {
+        assertEquals(SyncFingerprint.SYNC_CHANGES, SyncFingerprint.decide(false, CONFIG, CONFIG,
+                BLACKLIST, CONTACTS, CONTACTS, true));
+    }
+
+    @Test
+    public void decide_changedConfigSyncsAll() {
+        assertEquals(SyncFingerprint.SYNC_COMPLETE, SyncFingerprint.decide(false, CONFIG,
+                "changed", BLACKLIST, CONTACTS, CONTACTS, false));
+        assertEquals(SyncFingerprint.SYNC_COMPLETE, SyncFingerprint.decide(false, CONFIG, null,
+                BLACKLIST, CONTACTS, CONTACTS, false));
+        // blacklist not synced before
+        assertEquals(SyncFingerprint.SYNC_COMPLETE, SyncFingerprint.decide(false, CONFIG, CONFIG,
+                null, CONTACTS, CONTACTS, false));
+    }
+
+    @Test
+    public void decide_requestedCompleteSyncIsNotSkipped() {
+        assertEquals(SyncFingerprint.SYNC_COMPLETE, SyncFingerprint.decide(true, CONFIG, CONFIG,
+                BLACKLIST, CONTACTS, CONTACTS, false));
+    }
+
+    @Test
+    public void computeConfig_changesWithYearAndCalendar() {
+        SyncConfig config = newConfig();
+        String fingerprint = SyncFingerprint.computeConfig(config, 1, 2016);
+        assertEquals(fingerprint, SyncFingerprint.computeConfig(newConfig(), 1, 2016));
+        assertNotEquals(fingerprint, SyncFingerprint.computeConfig(config, 1, 2017));
+        assertNotEquals(fingerprint, SyncFingerprint.computeConfig(config, 2, 2016));
+    }
+
+    @Test
+    public void computeContacts_independentOfOrder() {
+        addRawContacts(100);
+        String fingerprint = SyncFingerprint.computeContacts(mContentResolver);
+        assertNotNull(fingerprint);
+
+        Collections.reverse(mRawContacts);
+        assertEquals(fingerprint, SyncFingerprint.computeContacts(mContentResolver));
+    }
+
+    @Test
+    public void computeContacts_changesWithRawContacts() {
+        addRawContacts(100);
+        String fingerprint = SyncFingerprint.computeContacts(mContentResolver);
+
+        // edited
+        mRawContacts.get(50)[2] = 2L;
+        String edited = SyncFingerprint.computeContacts(mContentResolver);
+        assertNotEquals(fingerprint, edited);
+
+        // joined with another contact
+        mRawContacts.get(50)[1] = 1L;
+        String joined = SyncFingerprint.computeContacts(mContentResolver);
+        assertNotEquals(edited, joined);
+
+        // moved to another account
+        mRawContacts.get(50)[4] = "other@example.com";
+        String moved = SyncFingerprint.computeContacts(mContentResolver);
+        assertNotEquals(joined, moved);
+
+        // deleted
+        mRawContacts.remove(50);
+        assertNotEquals(moved, SyncFingerprint.computeContacts(mContentResolver));
+    }
+
+    @Test
+    public void computeContacts_nullCursor() {
+        ContentResolver contentResolver = mock(ContentResolver.class);
+        assertNull(SyncFingerprint.computeContacts(contentResolver));
+    }
+
+    /**
+     * Fingerprints an unchanged large address book and decides to skip the sync, like the sync
+     */
+    @Test
+    public void decide_benchmark() {
+        addRawContacts(BENCHMARK_RAW_CONTACTS);
+        SyncConfig config = newConfig();
+        String syncedConfigFingerprint = SyncFingerprint.computeConfig(config, 1, 2016);
+        String syncedContactsFingerprint = SyncFingerprint.computeContacts(mContentResolver);
+
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            SyncFingerprint.computeContacts(mContentResolver);
+        }
+
+        int runs = 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            assertEquals(SyncFingerprint.SYNC_NOTHING, SyncFingerprint.decide(false,
+                    SyncFingerprint.computeConfig(config, 1, 2016), syncedConfigFingerprint,
+                    BLACKLIST, SyncFingerprint.computeContacts(mContentResolver),
+                    syncedContactsFingerprint, false));
+        }
+        long millis = (System.nanoTime() - start) / 1000000 / runs;
+        System.out.println(String.format(Locale.US,
+                "SyncFingerprint: unchanged address book, %d raw contacts: %d ms",
+                BENCHMARK_RAW_CONTACTS, millis));
+    }
+
+    private void addRawContacts(int count) {
+        for (int i = 0; i < count; i++) {
+            // some contacts consist of two raw contacts of different accounts
+            mRawContacts.add(new Object[]{(long) i, (long) (i / 2 * 2), 1L,
+                    "com.google", i % 2 == 0 ? "user@example.com" : "work@example.com"});
+        }
+    }
+
+    private static SyncConfig newConfig() {
+        return new SyncConfig(Locale.US, 0,
+                new int[]{0, 1440, Constants.DISABLED_REMINDER}, false, false,
+                new String[]{
+                        "%1$s: %2$s (%3$d)", "%1$s: %2$s",
+                        "%1$s: Anniversary (%2$d)", "%1$s: Anniversary",
+                        "%1$s: Birthday (%2$d)", "%1$s: Birthday",
+                        "%1$s: Other Event (%2$d)", "%1$s: Other Event"
+                });
+    }
+}